@@ -0,0 +1,161 @@
+import argparse
+import json
+import statistics
+import threading
+import time
+import urllib.error
+import urllib.request
+from concurrent.futures import ThreadPoolExecutor
+
+
+# ----------------------------------------
+# Concurrency probe for POST /ai/text
+#
+# Fires waves of simultaneous requests against one backend node and reports,
+# per wave, how many completed successfully, how long they took and which
+# errors came back. Busy Tomcat threads, active pipeline tasks and live JVM
+# threads are sampled from the actuator while the wave runs, and the levels
+# at which errors start and latency doubles are printed at the end. Run it
+# once with spring.threads.virtual.enabled=false and once with =true to
+# compare the platform and the virtual-thread mode.
+# ----------------------------------------
+
+class Result:
+    def __init__(self, status, latency):
+        self.status = status
+        self.latency = latency
+
+
+class ServerSampler:
+    """Samples the server side load during a wave: busy Tomcat threads, active pipeline tasks and live threads."""
+
+    METRICS = {
+        "busy": ("tomcat.threads.busy", None),
+        "tasks": ("executor.active", "name:applicationTaskExecutor"),
+        "threads": ("jvm.threads.live", None),
+    }
+
+    def __init__(self, base_url, token, interval=0.25):
+        self.base_url = base_url
+        self.token = token
+        self.interval = interval
+        self.peaks = {key: None for key in self.METRICS}
+        self.stopped = threading.Event()
+        self.thread = None
+
+    def sample(self, name, tag):
+        url = f"{self.base_url}/actuator/metrics/{name}" + (f"?tag={tag}" if tag else "")
+        request = urllib.request.Request(url)
+        request.add_header("Authorization", f"Bearer {self.token}")
+        try:
+            with urllib.request.urlopen(request, timeout=5) as response:
+                measurements = json.loads(response.read()).get("measurements", [])
+        except Exception:
+            return None
+        return next((m["value"] for m in measurements if m["statistic"] == "VALUE"), None)
+
+    def run(self):
+        while not self.stopped.is_set():
+            for key, (name, tag) in self.METRICS.items():
+                value = self.sample(name, tag)
+                if value is not None:
+                    self.peaks[key] = max(value, self.peaks[key] or 0)
+            self.stopped.wait(self.interval)
+
+    def __enter__(self):
+        self.thread = threading.Thread(target=self.run, daemon=True)
+        self.thread.start()
+        return self
+
+    def __exit__(self, *args):
+        self.stopped.set()
+        self.thread.join()
+
+    def peak(self, key):
+        value = self.peaks[key]
+        return f"{value:.0f}" if value is not None else "-"
+
+
+def send_request(url, token, room_path, text, timeout):
+    body = json.dumps({"text": text, "roomPath": room_path}).encode("utf-8")
+    request = urllib.request.Request(url, data=body, method="POST")
+    request.add_header("Content-Type", "application/json")
+    request.add_header("Authorization", f"Bearer {token}")
+
+    start = time.perf_counter()
+    try:
+        with urllib.request.urlopen(request, timeout=timeout) as response:
+            response.read()
+            status = response.status
+    except urllib.error.HTTPError as e:
+        status = e.code
+    except Exception:
+        status = 0
+    return Result(status, time.perf_counter() - start)
+
+
+def percentile(values, p):
+    if not values:
+        return 0.0
+    ordered = sorted(values)
+    index = min(len(ordered) - 1, int(round(p / 100 * (len(ordered) - 1))))
+    return ordered[index]
+
+
+def run_wave(args, concurrency):
+    with ServerSampler(args.management_url, args.token) as sampler:
+        start = time.perf_counter()
+        with ThreadPoolExecutor(max_workers=concurrency) as pool:
+            futures = [
+                pool.submit(send_request, args.url, args.token, args.room, args.text, args.timeout)
+                for _ in range(concurrency)
+            ]
+            results = [f.result() for f in futures]
+        elapsed = time.perf_counter() - start
+
+    ok = [r.latency for r in results if 200 <= r.status < 300]
+    statuses = {}
+    for r in results:
+        if not 200 <= r.status < 300:
+            statuses[r.status] = statuses.get(r.status, 0) + 1
+    failed = len(results) - len(ok)
+    print(f"{concurrency:>8} {len(ok):>8} {failed:>8} {sampler.peak('busy'):>8} {sampler.peak('tasks'):>8} {sampler.peak('threads'):>8} "
+          f"{statistics.mean(ok) if ok else 0:>9.2f} {percentile(ok, 50):>9.2f} {percentile(ok, 99):>9.2f} {elapsed:>9.2f}  "
+          + " ".join(f"{status}x{count}" for status, count in sorted(statuses.items())))
+    return failed, percentile(ok, 50)
+
+
+def main():
+    parser = argparse.ArgumentParser(description="Measure how many concurrent /ai/text requests one node can hold")
+    parser.add_argument("--url", default="http://localhost:8080/ai/text")
+    parser.add_argument("--management-url", default="http://localhost:8090", help="Actuator base URL of the same node")
+    parser.add_argument("--token", required=True, help="Bearer token of a user that is a member of --room")
+    parser.add_argument("--room", required=True, help="Room path, e.g. /2025/SoSe/Mustermann/Informatik")
+    parser.add_argument("--text", default="Worum geht es in dieser Vorlesung?")
+    parser.add_argument("--levels", default="50,100,200,400,800", help="Comma separated concurrency levels")
+    parser.add_argument("--timeout", type=float, default=180.0)
+    parser.add_argument("--stop-on-failure", action="store_true")
+    args = parser.parse_args()
+
+    # busy, tasks and threads are the peaks of tomcat.threads.busy, executor.active and jvm.threads.live on the server
+    print(f"{'conc':>8} {'ok':>8} {'failed':>8} {'busy':>8} {'tasks':>8} {'threads':>8} {'mean s':>9} {'p50 s':>9} {'p99 s':>9} {'wave s':>9}  errors")
+    baseline = None
+    first_failure = None
+    first_slowdown = None
+    for level in (int(l) for l in args.levels.split(",")):
+        failed, p50 = run_wave(args, level)
+        if baseline is None and p50 > 0:
+            baseline = p50
+        if failed and first_failure is None:
+            first_failure = level
+        if baseline and p50 > 2 * baseline and first_slowdown is None:
+            first_slowdown = level
+        if failed and args.stop_on_failure:
+            break
+
+    print(f"First failures at concurrency: {first_failure or '-'}")
+    print(f"p50 latency more than doubled at concurrency: {first_slowdown or '-'}")
+
+
+if __name__ == "__main__":
+    main()
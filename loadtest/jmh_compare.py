@@ -0,0 +1,100 @@
+import argparse
+import json
+import os
+import platform
+import shutil
+import sys
+
+
+# ----------------------------------------
+# Compares a JMH result with the committed baseline
+#
+# Both files are JMH JSON results (mvn -Pbenchmark compile exec:exec writes
+# target/jmh-result.json). A benchmark regresses if its score got worse by
+# more than the threshold: lower throughput, or higher average time.
+# Exits with 1 if any benchmark regressed, and with 2 if the baseline or the
+# result is missing. --record makes the result the new baseline and stores
+# the machine it was measured on next to it.
+# ----------------------------------------
+
+def load(path):
+    with open(path) as file:
+        results = {}
+        for entry in json.load(file):
+            params = ",".join(f"{key}={value}" for key, value in sorted(entry.get("params", {}).items()))
+            name = entry["benchmark"] + (f"[{params}]" if params else "")
+            results[name] = entry
+        return results
+
+
+def machine_path(baseline_path):
+    return os.path.splitext(baseline_path)[0] + "-machine.json"
+
+
+def record(args):
+    shutil.copyfile(args.result, args.baseline)
+    entries = json.load(open(args.result))
+    machine = {
+        "platform": platform.platform(),
+        "processor": platform.processor() or platform.machine(),
+        "cpus": os.cpu_count(),
+        "jdk": entries[0].get("jdkVersion") if entries else None,
+        "vm": entries[0].get("vmName") if entries else None,
+    }
+    with open(machine_path(args.baseline), "w") as file:
+        json.dump(machine, file, indent=2)
+    print(f"Recorded {len(entries)} benchmarks as the baseline in {args.baseline}, commit it together with {machine_path(args.baseline)}")
+
+
+def change(baseline, current):
+    base_score = baseline["primaryMetric"]["score"]
+    score = current["primaryMetric"]["score"]
+    if base_score == 0:
+        return 0.0
+    relative = (score - base_score) / base_score
+    # Positive means worse
+    return -relative if current["mode"] == "thrpt" else relative
+
+
+def main():
+    parser = argparse.ArgumentParser(description="Compare a JMH result with the baseline.")
+    parser.add_argument("--baseline", default="src/jmh/baseline.json")
+    parser.add_argument("--result", default="target/jmh-result.json")
+    parser.add_argument("--threshold", type=float, default=0.10, help="tolerated relative slowdown")
+    parser.add_argument("--record", action="store_true", help="store the result as the new baseline")
+    args = parser.parse_args()
+
+    if not os.path.exists(args.result):
+        print(f"No JMH result at {args.result}, run mvn -Pbenchmark compile exec:exec first.", file=sys.stderr)
+        sys.exit(2)
+    if args.record:
+        record(args)
+        return
+    if not os.path.exists(args.baseline):
+        print(f"No baseline at {args.baseline}, so nothing can be compared. Record one on the reference machine with "
+              f"--record and commit it.", file=sys.stderr)
+        sys.exit(2)
+
+    baseline = load(args.baseline)
+    result = load(args.result)
+    if os.path.exists(machine_path(args.baseline)):
+        machine = json.load(open(machine_path(args.baseline)))
+        print(f"Baseline measured on {machine.get('processor')} ({machine.get('cpus')} CPUs), {machine.get('platform')}, JDK {machine.get('jdk')}")
+
+    regressions = 0
+    print(f"{'benchmark':<90} {'baseline':>14} {'current':>14} {'change':>8}")
+    for name, current in sorted(result.items()):
+        if name not in baseline:
+            print(f"{name:<90} {'-':>14} {current['primaryMetric']['score']:>14.3f}      new")
+            continue
+        worse = change(baseline[name], current)
+        marker = " REGRESSION" if worse > args.threshold else ""
+        regressions += 1 if marker else 0
+        print(f"{name:<90} {baseline[name]['primaryMetric']['score']:>14.3f} {current['primaryMetric']['score']:>14.3f} "
+              f"{-worse:>+8.1%}{marker}")
+
+    sys.exit(1 if regressions else 0)
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,180 @@
+import base64
+import json
+import os
+import socket
+import struct
+import threading
+import time
+import urllib.error
+import urllib.parse
+import urllib.request
+import uuid
+
+
+# ----------------------------------------
+# Minimal HTTP, multipart and websocket client for the harness
+#
+# Only the standard library is used. The websocket client implements just
+# what /ws/{uuid} needs: the upgrade handshake with a bearer token and
+# reading unfragmented text frames.
+# ----------------------------------------
+
+class Response:
+    def __init__(self, status, body, headers=None):
+        self.status = status
+        self.body = body
+        self.headers = headers or {}
+
+    @property
+    def ok(self):
+        return 200 <= self.status < 300
+
+    def json(self):
+        return json.loads(self.body)
+
+
+class Client:
+    def __init__(self, base_url, token, timeout):
+        self.base_url = base_url.rstrip("/")
+        self.token = token
+        self.timeout = timeout
+
+    def request(self, method, path, body=None, content_type=None, timeout=None):
+        request = urllib.request.Request(self.base_url + path, data=body, method=method)
+        request.add_header("Authorization", f"Bearer {self.token}")
+        if content_type:
+            request.add_header("Content-Type", content_type)
+        try:
+            with urllib.request.urlopen(request, timeout=timeout or self.timeout) as response:
+                return Response(response.status, response.read(), dict(response.headers))
+        except urllib.error.HTTPError as e:
+            return Response(e.code, e.read(), dict(e.headers))
+        except (OSError, ValueError):
+            return Response(0, b"")
+
+    def get(self, path, timeout=None):
+        return self.request("GET", path, timeout=timeout)
+
+    def post_json(self, path, payload):
+        return self.request("POST", path, json.dumps(payload).encode(), "application/json")
+
+    def post_multipart(self, path, fields, files):
+        boundary = uuid.uuid4().hex
+        parts = []
+        for name, value in fields.items():
+            parts.append(f'--{boundary}\r\nContent-Disposition: form-data; name="{name}"\r\n\r\n{value}\r\n'.encode())
+        for name, (filename, content_type, data) in files.items():
+            parts.append(f'--{boundary}\r\nContent-Disposition: form-data; name="{name}"; filename="{filename}"\r\n'
+                         f'Content-Type: {content_type}\r\n\r\n'.encode() + data + b"\r\n")
+        parts.append(f"--{boundary}--\r\n".encode())
+        return self.request("POST", path, b"".join(parts), f"multipart/form-data; boundary={boundary}")
+
+    def websocket(self, path):
+        return WebSocket(self.base_url, path, self.token, self.timeout)
+
+
+class WebSocket:
+    def __init__(self, base_url, path, token, timeout):
+        url = urllib.parse.urlparse(base_url)
+        self.socket = socket.create_connection((url.hostname, url.port or 80), timeout=timeout)
+        key = base64.b64encode(os.urandom(16)).decode()
+        handshake = (f"GET {path} HTTP/1.1\r\nHost: {url.netloc}\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                     f"Sec-WebSocket-Key: {key}\r\nSec-WebSocket-Version: 13\r\nAuthorization: Bearer {token}\r\n\r\n")
+        self.socket.sendall(handshake.encode())
+        self.buffer = b""
+        while b"\r\n\r\n" not in self.buffer:
+            data = self.socket.recv(4096)
+            if not data:
+                raise ConnectionError("websocket handshake failed")
+            self.buffer += data
+        head, self.buffer = self.buffer.split(b"\r\n\r\n", 1)
+        if b" 101 " not in head.split(b"\r\n", 1)[0]:
+            raise ConnectionError(head.split(b"\r\n", 1)[0].decode(errors="replace"))
+
+    def _read(self, count):
+        while len(self.buffer) < count:
+            data = self.socket.recv(65536)
+            if not data:
+                raise ConnectionError("websocket closed")
+            self.buffer += data
+        data, self.buffer = self.buffer[:count], self.buffer[count:]
+        return data
+
+    def receive(self, timeout):
+        """Returns the next text message, or None once the timeout has passed."""
+        self.socket.settimeout(timeout)
+        try:
+            while True:
+                first, second = self._read(2)
+                opcode, length = first & 0x0F, second & 0x7F
+                if length == 126:
+                    length = struct.unpack(">H", self._read(2))[0]
+                elif length == 127:
+                    length = struct.unpack(">Q", self._read(8))[0]
+                payload = self._read(length)
+                if opcode == 0x1:
+                    return payload.decode()
+                if opcode == 0x8:
+                    raise ConnectionError("websocket closed by server")
+                if opcode == 0x9:
+                    self._send(0xA, payload)
+        except socket.timeout:
+            return None
+
+    def _send(self, opcode, payload):
+        mask = os.urandom(4)
+        header = bytes([0x80 | opcode, 0x80 | len(payload)]) if len(payload) < 126 else bytes([0x80 | opcode, 0xFE]) + struct.pack(">H", len(payload))
+        self.socket.sendall(header + mask + bytes(b ^ mask[i % 4] for i, b in enumerate(payload)))
+
+    def close(self):
+        try:
+            self._send(0x8, struct.pack(">H", 1000))
+        except OSError:
+            pass
+        self.socket.close()
+
+
+class JvmSampler:
+    """Samples live threads and used heap of the backend through the actuator while a scenario runs."""
+
+    def __init__(self, client, interval=0.5):
+        self.client = client
+        self.interval = interval
+        self.threads = []
+        self.heap = []
+        self.stopped = threading.Event()
+        self.thread = None
+
+    def metric(self, name, tag=None):
+        path = f"/actuator/metrics/{name}" + (f"?tag={urllib.parse.quote(tag)}" if tag else "")
+        response = self.client.get(path, timeout=5)
+        if not response.ok:
+            return None
+        return next((m["value"] for m in response.json().get("measurements", []) if m["statistic"] == "VALUE"), None)
+
+    def run(self):
+        while not self.stopped.is_set():
+            threads, heap = self.metric("jvm.threads.live"), self.metric("jvm.memory.used", "area:heap")
+            if threads is not None:
+                self.threads.append(threads)
+            if heap is not None:
+                self.heap.append(heap)
+            self.stopped.wait(self.interval)
+
+    def __enter__(self):
+        self.thread = threading.Thread(target=self.run, daemon=True)
+        self.thread.start()
+        return self
+
+    def __exit__(self, *args):
+        self.stopped.set()
+        self.thread.join()
+
+
+def wait_until_ready(client, timeout):
+    deadline = time.time() + timeout
+    while time.time() < deadline:
+        if client.get("/actuator/health", timeout=2).ok:
+            return True
+        time.sleep(1)
+    return False
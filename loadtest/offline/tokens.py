@@ -0,0 +1,92 @@
+import base64
+import hashlib
+import json
+import random
+import time
+
+
+# ----------------------------------------
+# RS256 tokens for the fake Keycloak
+#
+# The backend validates user tokens against the JWKS of the realm, so the
+# harness needs a real RSA key. It is generated with the standard library
+# only, to keep the harness free of dependencies.
+# ----------------------------------------
+
+# DER prefix of the DigestInfo for SHA-256 (RFC 8017, section 9.2)
+SHA256_DIGEST_INFO = bytes.fromhex("3031300d060960864801650304020105000420")
+
+
+def _is_probable_prime(n, rounds=40):
+    if n < 2:
+        return False
+    for p in (2, 3, 5, 7, 11, 13, 17, 19, 23, 29):
+        if n % p == 0:
+            return n == p
+    d, s = n - 1, 0
+    while d % 2 == 0:
+        d, s = d // 2, s + 1
+    for _ in range(rounds):
+        x = pow(random.randrange(2, n - 1), d, n)
+        if x in (1, n - 1):
+            continue
+        for _ in range(s - 1):
+            x = pow(x, 2, n)
+            if x == n - 1:
+                break
+        else:
+            return False
+    return True
+
+
+def _prime(bits):
+    while True:
+        candidate = random.getrandbits(bits) | (1 << (bits - 1)) | (1 << (bits - 2)) | 1
+        if _is_probable_prime(candidate):
+            return candidate
+
+
+def _b64url(data):
+    return base64.urlsafe_b64encode(data).rstrip(b"=").decode("ascii")
+
+
+def _int_bytes(value):
+    return value.to_bytes((value.bit_length() + 7) // 8, "big")
+
+
+class TokenIssuer:
+    def __init__(self, issuer, bits=2048, kid="loadtest"):
+        self.issuer = issuer
+        self.kid = kid
+        e = 65537
+        while True:
+            p, q = _prime(bits // 2), _prime(bits // 2)
+            phi = (p - 1) * (q - 1)
+            if p != q and phi % e != 0:
+                break
+        self.n = p * q
+        self.e = e
+        self.d = pow(e, -1, phi)
+        self.size = (self.n.bit_length() + 7) // 8
+
+    def jwks(self):
+        return {"keys": [{
+            "kty": "RSA", "use": "sig", "alg": "RS256", "kid": self.kid,
+            "n": _b64url(_int_bytes(self.n)), "e": _b64url(_int_bytes(self.e)),
+        }]}
+
+    def token(self, subject, groups=(), family_name="Loadtest", lifetime=3600):
+        now = int(time.time())
+        header = {"alg": "RS256", "typ": "JWT", "kid": self.kid}
+        claims = {
+            "iss": self.issuer, "sub": subject, "iat": now, "exp": now + lifetime,
+            "preferred_username": subject, "family_name": family_name, "groups": list(groups),
+        }
+        signing_input = f"{_b64url(json.dumps(header).encode())}.{_b64url(json.dumps(claims).encode())}"
+        return f"{signing_input}.{_b64url(self._sign(signing_input.encode('ascii')))}"
+
+    def _sign(self, message):
+        digest = SHA256_DIGEST_INFO + hashlib.sha256(message).digest()
+        padded = b"\x00\x01" + b"\xff" * (self.size - len(digest) - 3) + b"\x00" + digest
+        signature = pow(int.from_bytes(padded, "big"), self.d, self.n)
+        return signature.to_bytes(self.size, "big")
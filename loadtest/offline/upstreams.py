@@ -0,0 +1,371 @@
+import hashlib
+import json
+import os
+import random
+import struct
+import threading
+import time
+import urllib.parse
+import uuid
+from http.server import BaseHTTPRequestHandler, ThreadingHTTPServer
+from pathlib import Path
+
+
+# ----------------------------------------
+# In-process stand-ins for the upstreams of the backend
+#
+# Every fake listens on its own port, like the real services do, and keeps
+# the contract the backend relies on: xtts writes {index}p.wav chunks and a
+# final {index}f.wav into output/chunks/{uuid}, wav2lip turns every chunk
+# into an HLS segment of video/playlist.m3u8 and ends the playlist on the
+# final chunk. Latencies are configurable, so GPU-bound and fast upstreams
+# can both be emulated.
+# ----------------------------------------
+
+SAMPLE_RATE = 24000
+EMBEDDING_DIMENSIONS = 1536
+
+
+class Latencies:
+    def __init__(self, args):
+        self.whisper = args.whisper_ms / 1000
+        self.embedding = args.embedding_ms / 1000
+        self.first_token = args.first_token_ms / 1000
+        self.token = args.token_ms / 1000
+        self.tts_chunk = args.tts_chunk_ms / 1000
+        self.lipsync_segment = args.lipsync_segment_ms / 1000
+        self.keycloak = args.keycloak_ms / 1000
+        self.answer_words = args.answer_words
+
+
+def sleep(seconds):
+    if seconds > 0:
+        time.sleep(seconds)
+
+
+def wav(seconds):
+    samples = int(SAMPLE_RATE * seconds)
+    data = b"\x00\x00" * samples
+    header = b"RIFF" + struct.pack("<I", 36 + len(data)) + b"WAVEfmt " + struct.pack("<IHHIIHH", 16, 1, 1, SAMPLE_RATE, SAMPLE_RATE * 2, 2, 16)
+    return header + b"data" + struct.pack("<I", len(data)) + data
+
+
+def write_atomically(path, data):
+    temporary = path.with_name(path.name + ".tmp")
+    temporary.write_bytes(data)
+    os.replace(temporary, path)
+
+
+class Handler(BaseHTTPRequestHandler):
+    protocol_version = "HTTP/1.1"
+    upstream = None
+
+    def log_message(self, format, *args):
+        pass
+
+    def body(self):
+        # The backend's HTTP clients stream JSON and form bodies with chunked transfer encoding
+        if self.headers.get("Transfer-Encoding", "").lower() == "chunked":
+            data = b""
+            while True:
+                size = int(self.rfile.readline().split(b";")[0].strip() or b"0", 16)
+                if size == 0:
+                    while self.rfile.readline() not in (b"\r\n", b"\n", b""):
+                        pass
+                    return data
+                data += self.rfile.read(size)
+                self.rfile.readline()
+        length = int(self.headers.get("Content-Length") or 0)
+        return self.rfile.read(length) if length else b""
+
+    def send_json(self, payload, status=200):
+        data = json.dumps(payload).encode()
+        self.send_response(status)
+        self.send_header("Content-Type", "application/json")
+        self.send_header("Content-Length", str(len(data)))
+        self.end_headers()
+        self.wfile.write(data)
+
+    def send_empty(self, status):
+        self.send_response(status)
+        self.send_header("Content-Length", "0")
+        self.end_headers()
+
+    def do_GET(self):
+        self.upstream.handle(self, "GET")
+
+    def do_POST(self):
+        self.upstream.handle(self, "POST")
+
+    def do_PUT(self):
+        self.upstream.handle(self, "PUT")
+
+
+class Upstream:
+    def __init__(self, name):
+        self.name = name
+        self.server = None
+        self.calls = 0
+        self.lock = threading.Lock()
+
+    def start(self, host="127.0.0.1", port=0):
+        handler = type(f"{self.name}Handler", (Handler,), {"upstream": self})
+        self.server = ThreadingHTTPServer((host, port), handler)
+        self.server.daemon_threads = True
+        threading.Thread(target=self.server.serve_forever, name=self.name, daemon=True).start()
+        return self
+
+    @property
+    def url(self):
+        host, port = self.server.server_address
+        return f"http://{host}:{port}"
+
+    def stop(self):
+        self.server.shutdown()
+
+    def handle(self, request, method):
+        with self.lock:
+            self.calls += 1
+        try:
+            self.route(request, method, urllib.parse.urlparse(request.path))
+        except (BrokenPipeError, ConnectionResetError):
+            pass
+
+    def route(self, request, method, url):
+        request.send_empty(404)
+
+
+class Whisper(Upstream):
+    def __init__(self, latencies):
+        super().__init__("whisper")
+        self.latencies = latencies
+
+    def route(self, request, method, url):
+        request.body()
+        sleep(self.latencies.whisper)
+        request.send_json({"transcription": f"Was bedeutet Rekursion im Beispiel {random.randrange(1_000_000)}?"})
+
+
+class OpenAi(Upstream):
+    def __init__(self, latencies):
+        super().__init__("openai")
+        self.latencies = latencies
+
+    def route(self, request, method, url):
+        payload = json.loads(request.body() or b"{}")
+        if url.path.endswith("/embeddings"):
+            self.embeddings(request, payload)
+        elif url.path.endswith("/chat/completions"):
+            self.chat(request, payload)
+        else:
+            request.send_empty(404)
+
+    def embeddings(self, request, payload):
+        inputs = payload.get("input", [])
+        if isinstance(inputs, str):
+            inputs = [inputs]
+        sleep(self.latencies.embedding)
+        data = []
+        for index, text in enumerate(inputs):
+            # Deterministic per text, so the embedding caches behave like with the real model
+            generator = random.Random(hashlib.sha256(str(text).encode()).digest())
+            data.append({"object": "embedding", "index": index, "embedding": [generator.uniform(-1, 1) for _ in range(EMBEDDING_DIMENSIONS)]})
+        request.send_json({"object": "list", "data": data, "model": payload.get("model", "fake-embedding"),
+                           "usage": {"prompt_tokens": len(inputs), "total_tokens": len(inputs)}})
+
+    def answer(self, payload):
+        question = ""
+        for message in payload.get("messages", []):
+            if message.get("role") == "user" and isinstance(message.get("content"), str):
+                question = message["content"]
+        seed = int.from_bytes(hashlib.sha256(question.encode()).digest()[:8], "big")
+        words = ["Rekursion", "bedeutet,", "dass", "eine", "Funktion", "sich", "selbst", "aufruft.", "Die", "Abbruchbedingung",
+                 "beendet", "die", "Aufrufe.", "Jeder", "Aufruf", "bekommt", "ein", "kleineres", "Problem."]
+        generator = random.Random(seed)
+        return " ".join(generator.choice(words) for _ in range(self.latencies.answer_words)) + f" ({seed % 100000})."
+
+    def chat(self, request, payload):
+        answer = self.answer(payload)
+        created = int(time.time())
+        completion_id = f"chatcmpl-{uuid.uuid4().hex}"
+        model = payload.get("model", "fake-chat")
+        if not payload.get("stream"):
+            sleep(self.latencies.first_token + self.latencies.token * len(answer.split()))
+            request.send_json({"id": completion_id, "object": "chat.completion", "created": created, "model": model,
+                               "choices": [{"index": 0, "message": {"role": "assistant", "content": answer}, "finish_reason": "stop"}],
+                               "usage": {"prompt_tokens": 100, "completion_tokens": len(answer.split()), "total_tokens": 100 + len(answer.split())}})
+            return
+
+        request.send_response(200)
+        request.send_header("Content-Type", "text/event-stream")
+        request.send_header("Transfer-Encoding", "chunked")
+        request.end_headers()
+
+        def event(delta, finish_reason=None):
+            chunk = {"id": completion_id, "object": "chat.completion.chunk", "created": created, "model": model,
+                     "choices": [{"index": 0, "delta": delta, "finish_reason": finish_reason}]}
+            write_chunk(f"data: {json.dumps(chunk)}\n\n".encode())
+
+        def write_chunk(data):
+            request.wfile.write(f"{len(data):x}\r\n".encode() + data + b"\r\n")
+            request.wfile.flush()
+
+        sleep(self.latencies.first_token)
+        event({"role": "assistant", "content": ""})
+        for word in answer.split(" "):
+            event({"content": word + " "})
+            sleep(self.latencies.token)
+        event({}, "stop")
+        write_chunk(b"data: [DONE]\n\n")
+        request.wfile.write(b"0\r\n\r\n")
+
+
+class Xtts(Upstream):
+    def __init__(self, latencies, output_path):
+        super().__init__("xtts")
+        self.latencies = latencies
+        self.output_path = Path(output_path)
+        self.sessions = {}
+        self.sessions_lock = threading.Lock()
+
+    def route(self, request, method, url):
+        payload = json.loads(request.body() or b"{}")
+        session_uuid = payload.get("uuid")
+        final = payload.get("final", True)
+        with self.sessions_lock:
+            if session_uuid:
+                if session_uuid not in self.sessions:
+                    request.send_json({"detail": "Session not found."}, 404)
+                    return
+            else:
+                session_uuid = str(uuid.uuid4())
+                (self.output_path / session_uuid).mkdir(parents=True, exist_ok=True)
+                self.sessions[session_uuid] = threading.Lock()
+            lock = self.sessions[session_uuid]
+
+        threading.Thread(target=self.generate, args=(session_uuid, lock, payload.get("text", ""), final), daemon=True).start()
+        request.send_json({"message": "Chunk generation started in background.", "chunk_dir": str(self.output_path / session_uuid), "uuid": session_uuid})
+
+    def generate(self, session_uuid, lock, text, final):
+        directory = self.output_path / session_uuid
+        with lock:
+            index = len(list(directory.glob("*.wav"))) + 1
+            # Roughly one 1.5 s chunk per 25 characters, the last one is kept back for the final marker
+            chunks = max(1, len(text.strip()) // 25) if text.strip() else 0
+            for _ in range(chunks - 1 if final else chunks):
+                sleep(self.latencies.tts_chunk)
+                write_atomically(directory / f"{index:04d}p.wav", wav(1.5))
+                index += 1
+            if final:
+                sleep(self.latencies.tts_chunk if chunks else 0)
+                write_atomically(directory / f"{index:04d}f.wav", wav(1.5 if chunks else 0.5))
+                with self.sessions_lock:
+                    self.sessions.pop(session_uuid, None)
+
+
+class Wav2Lip(Upstream):
+    def __init__(self, latencies, output_path, segment_bytes, render_timeout=300):
+        super().__init__("wav2lip")
+        self.latencies = latencies
+        self.output_path = Path(output_path)
+        self.segment_bytes = segment_bytes
+        self.render_timeout = render_timeout
+
+    def route(self, request, method, url):
+        form = urllib.parse.parse_qs(request.body().decode())
+        session_uuid = form.get("uuid", [""])[0]
+        directory = self.output_path / session_uuid
+        if not session_uuid or not (directory / "0001p.wav").exists():
+            request.send_json({"detail": "Audio chunks not found"}, 500)
+            return
+        threading.Thread(target=self.render, args=(directory,), daemon=True).start()
+        request.send_json({"uuid": session_uuid})
+
+    def render(self, directory):
+        video = directory / "video"
+        video.mkdir(exist_ok=True)
+        segments = []
+        deadline = time.time() + self.render_timeout
+        index = 1
+        while time.time() < deadline:
+            partial, final = directory / f"{index:04d}p.wav", directory / f"{index:04d}f.wav"
+            if not partial.exists() and not final.exists():
+                time.sleep(0.02)
+                continue
+
+            sleep(self.latencies.lipsync_segment)
+            name = f"chunk_{len(segments):04d}.ts"
+            write_atomically(video / name, os.urandom(self.segment_bytes))
+            segments.append(name)
+            ended = final.exists()
+            lines = ["#EXTM3U", "#EXT-X-VERSION:3", "#EXT-X-TARGETDURATION:2", "#EXT-X-MEDIA-SEQUENCE:0"]
+            for segment in segments:
+                lines += ["#EXTINF:1.500000,", segment]
+            if ended:
+                lines.append("#EXT-X-ENDLIST")
+            write_atomically(video / "playlist.m3u8", ("\n".join(lines) + "\n").encode())
+            if ended:
+                return
+            index += 1
+
+
+class Keycloak(Upstream):
+    REALM = "AI-Avatar"
+
+    def __init__(self, latencies, issuer_factory, owner_id, rooms):
+        super().__init__("keycloak")
+        self.latencies = latencies
+        self.issuer_factory = issuer_factory
+        self.issuer = None
+        self.owner_id = owner_id
+        self.groups = {}
+        for index, path in enumerate(rooms):
+            self.groups[path] = {"id": str(uuid.uuid5(uuid.NAMESPACE_URL, path)), "name": path.rsplit("/", 1)[-1], "path": path,
+                                 "attributes": {"owner": [owner_id], "icon": ["computer"]}, "subGroups": []}
+
+    def start(self, host="127.0.0.1", port=0):
+        super().start(host, port)
+        self.issuer = self.issuer_factory(f"{self.url}/realms/{self.REALM}")
+        return self
+
+    @property
+    def realm_url(self):
+        return f"{self.url}/realms/{self.REALM}"
+
+    @property
+    def admin_url(self):
+        return f"{self.url}/admin/realms/{self.REALM}"
+
+    def route(self, request, method, url):
+        request.body()
+        path = urllib.parse.unquote(url.path)
+        realm = f"/realms/{self.REALM}/protocol/openid-connect"
+        admin = f"/admin/realms/{self.REALM}"
+        if path == f"{realm}/certs":
+            request.send_json(self.issuer.jwks())
+            return
+        if path == f"{realm}/token":
+            request.send_json({"access_token": "offline-admin-token", "expires_in": 300, "token_type": "Bearer"})
+            return
+
+        sleep(self.latencies.keycloak)
+        if not path.startswith(admin):
+            request.send_empty(404)
+        elif method == "PUT" or method == "POST":
+            request.send_empty(204 if method == "PUT" else 201)
+        elif path.startswith(f"{admin}/group-by-path"):
+            group = self.groups.get(path[len(f"{admin}/group-by-path"):])
+            request.send_json(group) if group else request.send_json({"error": "Group not found"}, 404)
+        elif path.startswith(f"{admin}/groups/"):
+            group_id = path.rsplit("/", 1)[-1]
+            group = next((g for g in self.groups.values() if g["id"] == group_id), None)
+            request.send_json(group) if group else request.send_json({"error": "Group not found"}, 404)
+        elif path.endswith("/groups") and path.startswith(f"{admin}/users/"):
+            request.send_json([{"id": g["id"], "name": g["name"], "path": g["path"]} for g in self.groups.values()])
+        elif path.startswith(f"{admin}/users/"):
+            user_id = path.rsplit("/", 1)[-1]
+            request.send_json({"id": user_id, "username": user_id, "enabled": True, "attributes": {"language": ["de"]}})
+        elif path == f"{admin}/users":
+            request.send_json([])
+        else:
+            request.send_empty(404)
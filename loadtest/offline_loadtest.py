@@ -0,0 +1,348 @@
+import argparse
+import itertools
+import json
+import os
+import shutil
+import subprocess
+import sys
+import tempfile
+import time
+from concurrent.futures import ThreadPoolExecutor
+from pathlib import Path
+
+from offline.client import Client, JvmSampler, wait_until_ready
+from offline.tokens import TokenIssuer
+from offline.upstreams import Keycloak, Latencies, OpenAi, Wav2Lip, Whisper, Xtts, wav
+
+
+# ----------------------------------------
+# Offline end-to-end load test
+#
+# Starts in-process fakes for whisper, xtts, wav2lip, Keycloak and the OpenAI
+# API, optionally starts the backend jar against them, and drives /ai/text,
+# /ai/audio, /references/upload, /stream/** and /ws/{uuid} at the given
+# concurrency. Only Postgres with pgvector is needed from outside, e.g.
+# `docker compose up -d db`. Per scenario it prints throughput, p50/p99
+# latency, time to the first HLS segment and the live threads and used heap
+# sampled through the actuator.
+# ----------------------------------------
+
+OWNER_ID = "00000000-0000-4000-8000-00000000a11c"
+ROOM = "/2025/SoSe/Loadtest/Informatik"
+SCENARIOS = ("text", "audio", "upload", "stream", "ws")
+
+
+class Outcome:
+    def __init__(self, ok, latency, first_segment=None, error=None):
+        self.ok = ok
+        self.latency = latency
+        self.first_segment = first_segment
+        self.error = error
+
+
+def percentile(values, p):
+    if not values:
+        return 0.0
+    ordered = sorted(values)
+    index = min(len(ordered) - 1, int(round(p / 100 * (len(ordered) - 1))))
+    return ordered[index]
+
+
+def sample_pdf(pages):
+    objects = ["<< /Type /Catalog /Pages 2 0 R >>", None, "<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica >>"]
+    kids = []
+    for page in range(pages):
+        text = " ".join(f"Abschnitt {page + 1}.{line}: Rekursion zerlegt ein Problem in kleinere Teilprobleme gleicher Art." for line in range(12))
+        stream = "BT /F1 10 Tf 40 780 Td 14 TL " + " ".join(f"({text[i:i + 90]}) '" for i in range(0, len(text), 90)) + " ET"
+        objects.append(f"<< /Length {len(stream)} >>\nstream\n{stream}\nendstream")
+        objects.append(f"<< /Type /Page /Parent 2 0 R /MediaBox [0 0 595 842] /Resources << /Font << /F1 3 0 R >> >> /Contents {len(objects)} 0 R >>")
+        kids.append(f"{len(objects)} 0 R")
+    objects[1] = f"<< /Type /Pages /Kids [{' '.join(kids)}] /Count {pages} >>"
+
+    data = b"%PDF-1.4\n"
+    offsets = []
+    for number, content in enumerate(objects, 1):
+        offsets.append(len(data))
+        data += f"{number} 0 obj\n{content}\nendobj\n".encode()
+    xref = len(data)
+    data += f"xref\n0 {len(objects) + 1}\n0000000000 65535 f \n".encode()
+    data += "".join(f"{offset:010d} 00000 n \n" for offset in offsets).encode()
+    data += f"trailer\n<< /Size {len(objects) + 1} /Root 1 0 R >>\nstartxref\n{xref}\n%%EOF\n".encode()
+    return data
+
+
+class Scenarios:
+    def __init__(self, client, args):
+        self.client = client
+        self.args = args
+        self.counter = itertools.count()
+        self.pdf = sample_pdf(args.pdf_pages)
+        self.question_audio = wav(3)
+
+    def question(self):
+        # Every question is new, so neither the response cache nor the render cache answers it
+        return f"Erkläre Rekursion anhand von Beispiel {next(self.counter)} {time.time_ns()}."
+
+    def ask(self):
+        start = time.perf_counter()
+        response = self.client.post_json("/ai/text", {"text": self.question(), "roomPath": ROOM})
+        if not response.ok:
+            return start, None, Outcome(False, time.perf_counter() - start, error=f"/ai/text {response.status}")
+        stream_uuid = response.json().get("streamingUUID")
+        if stream_uuid is None:
+            return start, None, Outcome(False, time.perf_counter() - start, error="/ai/text without streamingUUID")
+        return start, stream_uuid, None
+
+    def first_segment(self, stream_uuid, start):
+        response = self.client.get(f"/stream/{stream_uuid}/playlist.m3u8?_HLS_msn=0")
+        return time.perf_counter() - start if response.ok else None
+
+    def text(self):
+        start, stream_uuid, failure = self.ask()
+        if failure:
+            return failure
+        latency = time.perf_counter() - start
+        return Outcome(True, latency, self.first_segment(stream_uuid, start))
+
+    def audio(self):
+        start = time.perf_counter()
+        response = self.client.post_multipart("/ai/audio", {"roomPath": ROOM}, {"file": ("question.wav", "audio/wav", self.question_audio)})
+        latency = time.perf_counter() - start
+        if not response.ok:
+            return Outcome(False, latency, error=f"/ai/audio {response.status}")
+        stream_uuid = response.json().get("streamingUUID")
+        if stream_uuid is None:
+            return Outcome(False, latency, error="/ai/audio without streamingUUID")
+        return Outcome(True, latency, self.first_segment(stream_uuid, start))
+
+    def upload(self):
+        start = time.perf_counter()
+        name = f"skript-{next(self.counter)}.pdf"
+        response = self.client.post_multipart("/references/upload", {"roomPath": ROOM}, {"file": (name, "application/pdf", self.pdf)})
+        if not response.ok:
+            return Outcome(False, time.perf_counter() - start, error=f"/references/upload {response.status}")
+        job_id = response.json()["jobId"]
+        deadline = time.time() + self.args.timeout
+        while time.time() < deadline:
+            job = self.client.get(f"/references/jobs/{job_id}")
+            state = job.json().get("state") if job.ok else None
+            if state in ("DONE", "FAILED"):
+                return Outcome(state == "DONE", time.perf_counter() - start, error=None if state == "DONE" else job.json().get("error"))
+            time.sleep(0.2)
+        return Outcome(False, time.perf_counter() - start, error="ingestion timeout")
+
+    def stream(self):
+        """Plays the answer like a player would: blocking playlist reloads and every segment until the playlist ends."""
+        start, stream_uuid, failure = self.ask()
+        if failure:
+            return failure
+        first_segment = None
+        fetched = 0
+        deadline = time.time() + self.args.timeout
+        while time.time() < deadline:
+            playlist = self.client.get(f"/stream/{stream_uuid}/playlist.m3u8?_HLS_msn={fetched}")
+            if not playlist.ok:
+                return Outcome(False, time.perf_counter() - start, first_segment, f"playlist {playlist.status}")
+            lines = playlist.body.decode().splitlines()
+            segments = [line for line in lines if line and not line.startswith("#")]
+            for segment in segments[fetched:]:
+                response = self.client.get(f"/stream/{stream_uuid}/{segment}")
+                if not response.ok:
+                    return Outcome(False, time.perf_counter() - start, first_segment, f"segment {response.status}")
+                if first_segment is None:
+                    first_segment = time.perf_counter() - start
+            fetched = len(segments)
+            if "#EXT-X-ENDLIST" in lines:
+                return Outcome(True, time.perf_counter() - start, first_segment)
+        return Outcome(False, time.perf_counter() - start, first_segment, "stream timeout")
+
+    def ws(self):
+        """Subscribes to the playlist updates of a fresh answer and waits until the playlist has ended."""
+        start, stream_uuid, failure = self.ask()
+        if failure:
+            return failure
+        try:
+            socket = self.client.websocket(f"/ws/{stream_uuid}")
+        except OSError as e:
+            return Outcome(False, time.perf_counter() - start, error=f"websocket {e}")
+        first_segment = None
+        try:
+            deadline = time.time() + self.args.timeout
+            while time.time() < deadline:
+                message = socket.receive(timeout=1)
+                if message is not None and json.loads(message).get("type") == "update" and first_segment is None:
+                    first_segment = time.perf_counter() - start
+                playlist = self.client.get(f"/stream/{stream_uuid}/playlist.m3u8")
+                if playlist.ok and b"#EXT-X-ENDLIST" in playlist.body:
+                    # A render that ended before the subscription started never produces an update
+                    return Outcome(first_segment is not None, time.perf_counter() - start, first_segment, None if first_segment else "no update pushed")
+            return Outcome(False, time.perf_counter() - start, first_segment, "websocket timeout")
+        except OSError as e:
+            return Outcome(False, time.perf_counter() - start, first_segment, f"websocket {e}")
+        finally:
+            socket.close()
+
+
+def run_scenario(name, scenarios, management, args):
+    action = getattr(scenarios, name)
+
+    def guarded():
+        try:
+            return action()
+        except Exception as e:
+            return Outcome(False, 0.0, error=repr(e))
+
+    with JvmSampler(management) as sampler:
+        start = time.perf_counter()
+        with ThreadPoolExecutor(max_workers=args.concurrency) as pool:
+            outcomes = list(pool.map(lambda _: guarded(), range(args.requests)))
+        elapsed = time.perf_counter() - start
+
+    ok = [o for o in outcomes if o.ok]
+    latencies = [o.latency for o in ok]
+    first_segments = [o.first_segment for o in ok if o.first_segment is not None]
+    errors = {}
+    for outcome in outcomes:
+        if not outcome.ok:
+            errors[outcome.error] = errors.get(outcome.error, 0) + 1
+    return {
+        "scenario": name,
+        "requests": len(outcomes),
+        "ok": len(ok),
+        "failed": len(outcomes) - len(ok),
+        "throughput": len(ok) / elapsed if elapsed else 0.0,
+        "latency_p50": percentile(latencies, 50),
+        "latency_p99": percentile(latencies, 99),
+        "first_segment_p50": percentile(first_segments, 50) if first_segments else None,
+        "first_segment_p99": percentile(first_segments, 99) if first_segments else None,
+        "threads_peak": max(sampler.threads, default=None),
+        "heap_peak_mb": max(sampler.heap, default=0) / 1024 / 1024 if sampler.heap else None,
+        "errors": errors,
+    }
+
+
+def print_result(result):
+    def number(value, format):
+        return f"{value:{format}}" if value is not None else f"{'-':>{format.split('.')[0]}}"
+
+    print(f"{result['scenario']:>8} {result['ok']:>6} {result['failed']:>6} {result['throughput']:>8.2f} "
+          f"{result['latency_p50']:>8.2f} {result['latency_p99']:>8.2f} "
+          f"{number(result['first_segment_p50'], '8.2f')} {number(result['first_segment_p99'], '8.2f')} "
+          f"{number(result['threads_peak'], '8.0f')} {number(result['heap_peak_mb'], '8.0f')}")
+    for error, count in result["errors"].items():
+        print(f"{'':>8} {count:>6} x {error}")
+
+
+def backend_properties(args, work, upstreams):
+    whisper, xtts, wav2lip, keycloak, openai = upstreams
+    return {
+        "server.port": str(args.port),
+        "management.server.port": str(args.management_port),
+        "stt.server.url": whisper.url,
+        "tts.server.url": f"{xtts.url}/tts_stream_to_file",
+        "video.server.url": f"{wav2lip.url}/inference",
+        "spring.ai.openai.base-url": openai.url,
+        "spring.ai.openai.api-key": "offline",
+        "spring.security.oauth2.resourceserver.jwt.jwk-set-uri": f"{keycloak.realm_url}/protocol/openid-connect/certs",
+        "keycloak.token-url": f"{keycloak.realm_url}/protocol/openid-connect/token",
+        "keycloak.admin-url": keycloak.admin_url,
+        "keycloak.admin-token": "offline",
+        "output_path": f"{work / 'output' / 'chunks'}/",
+        "references_path": f"{work / 'references'}/",
+        "profiles_path": f"{work / 'profiles'}/",
+        "transfer_path": f"{work / 'transfer'}/",
+        "spring.datasource.url": args.datasource,
+        "management.endpoints.web.exposure.include": "health,metrics,prometheus",
+    }
+
+
+def main():
+    parser = argparse.ArgumentParser(description="Load test the backend offline against fake upstreams")
+    parser.add_argument("--jar", help="Backend jar to start against the fakes, otherwise the backend at --port must already use them")
+    parser.add_argument("--port", type=int, default=8080)
+    parser.add_argument("--management-port", type=int, default=8090, help="Actuator port of the backend")
+    parser.add_argument("--datasource", default="jdbc:postgresql://localhost:5432/aiAvatar")
+    parser.add_argument("--scenarios", default=",".join(SCENARIOS), help="Comma separated, any of " + ", ".join(SCENARIOS))
+    parser.add_argument("--requests", type=int, default=50, help="Requests per scenario")
+    parser.add_argument("--concurrency", type=int, default=10)
+    parser.add_argument("--timeout", type=float, default=180.0)
+    parser.add_argument("--pdf-pages", type=int, default=20)
+    parser.add_argument("--whisper-ms", type=float, default=800)
+    parser.add_argument("--embedding-ms", type=float, default=50)
+    parser.add_argument("--first-token-ms", type=float, default=300)
+    parser.add_argument("--token-ms", type=float, default=20)
+    parser.add_argument("--answer-words", type=int, default=60)
+    parser.add_argument("--tts-chunk-ms", type=float, default=400)
+    parser.add_argument("--lipsync-segment-ms", type=float, default=600)
+    parser.add_argument("--segment-bytes", type=int, default=200_000)
+    parser.add_argument("--keycloak-ms", type=float, default=10)
+    parser.add_argument("--json", help="Also write the results to this file")
+    parser.add_argument("--keep-work", action="store_true", help="Keep the temporary output and reference directories")
+    args = parser.parse_args()
+
+    scenarios = [s.strip() for s in args.scenarios.split(",") if s.strip()]
+    unknown = set(scenarios) - set(SCENARIOS)
+    if unknown:
+        parser.error(f"unknown scenarios: {', '.join(sorted(unknown))}")
+
+    work = Path(tempfile.mkdtemp(prefix="avatar-loadtest-"))
+    for directory in ("output/chunks", "references", "profiles", "transfer"):
+        (work / directory).mkdir(parents=True)
+
+    latencies = Latencies(args)
+    print("Generating the RSA key of the fake realm...", file=sys.stderr)
+    upstreams = (
+        Whisper(latencies).start(),
+        Xtts(latencies, work / "output" / "chunks").start(),
+        Wav2Lip(latencies, work / "output" / "chunks", args.segment_bytes).start(),
+        Keycloak(latencies, TokenIssuer, OWNER_ID, [ROOM]).start(),
+        OpenAi(latencies).start(),
+    )
+    keycloak = upstreams[3]
+    properties = backend_properties(args, work, upstreams)
+
+    backend = None
+    try:
+        if args.jar:
+            command = ["java", "-jar", args.jar] + [f"--{key}={value}" for key, value in properties.items()]
+            log = open(work / "backend.log", "wb")
+            backend = subprocess.Popen(command, stdout=log, stderr=subprocess.STDOUT, env={**os.environ, "OPENAI_API_KEY": "offline"})
+        else:
+            print("Start the backend with:", file=sys.stderr)
+            print("  " + " ".join(f"--{key}={value}" for key, value in properties.items()), file=sys.stderr)
+
+        token = keycloak.issuer.token(OWNER_ID, groups=[ROOM], lifetime=int(args.timeout) * 100)
+        client = Client(f"http://localhost:{args.port}", token, args.timeout)
+        management = Client(f"http://localhost:{args.management_port}", token, args.timeout)
+        if not wait_until_ready(management, 300 if args.jar else 600):
+            print(f"Backend did not become ready, see {work / 'backend.log'}" if args.jar else "Backend did not become ready", file=sys.stderr)
+            args.keep_work = bool(args.jar)
+            sys.exit(1)
+
+        runner = Scenarios(client, args)
+        print(f"{'scenario':>8} {'ok':>6} {'failed':>6} {'req/s':>8} {'p50 s':>8} {'p99 s':>8} {'ttfs50':>8} {'ttfs99':>8} {'threads':>8} {'heap MB':>8}")
+        results = []
+        for name in scenarios:
+            result = run_scenario(name, runner, management, args)
+            result["upstream_calls"] = {upstream.name: upstream.calls for upstream in upstreams}
+            results.append(result)
+            print_result(result)
+
+        if args.json:
+            with open(args.json, "w") as f:
+                json.dump({"settings": vars(args), "results": results}, f, indent=2)
+    finally:
+        if backend:
+            backend.terminate()
+            try:
+                backend.wait(30)
+            except subprocess.TimeoutExpired:
+                backend.kill()
+        for upstream in upstreams:
+            upstream.stop()
+        if not args.keep_work:
+            shutil.rmtree(work, ignore_errors=True)
+
+
+if __name__ == "__main__":
+    main()
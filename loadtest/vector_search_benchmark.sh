@@ -0,0 +1,73 @@
+#!/usr/bin/env bash
+# ----------------------------------------
+# Latency benchmark for the room-scoped similarity search
+#
+# Fills a scratch table with random embeddings spread over a number of rooms, growing in steps,
+# and measures after every step the execution time of the same top-k query twice:
+#   json   - room filter as JSON path match on the metadata (what the default PgVectorStore filter does)
+#   column - room filter on the indexed generated column (what VectorIndexService does)
+# Both use the same HNSW index with the parameters given below.
+#
+# Usage: PSQL="docker compose exec -T db psql -U postgres -d aiAvatar" loadtest/vector_search_benchmark.sh
+# ----------------------------------------
+set -euo pipefail
+
+PSQL=${PSQL:-"psql -U postgres -d aiAvatar"}
+DIMENSIONS=${DIMENSIONS:-1536}
+ROOMS=${ROOMS:-50}
+STEPS=${STEPS:-"10000 50000 100000 200000"}
+QUERIES=${QUERIES:-20}
+TOP_K=${TOP_K:-6}
+HNSW_M=${HNSW_M:-16}
+HNSW_EF_CONSTRUCTION=${HNSW_EF_CONSTRUCTION:-64}
+HNSW_EF_SEARCH=${HNSW_EF_SEARCH:-100}
+
+sql() {
+  $PSQL -v ON_ERROR_STOP=1 -q -t -A -c "$1"
+}
+
+sql "CREATE EXTENSION IF NOT EXISTS vector"
+sql "DROP TABLE IF EXISTS vector_search_benchmark"
+sql "CREATE TABLE vector_search_benchmark (id uuid PRIMARY KEY DEFAULT gen_random_uuid(), metadata json, embedding vector($DIMENSIONS),
+     room text GENERATED ALWAYS AS (metadata->>'room') STORED)"
+sql "CREATE INDEX ON vector_search_benchmark (room)"
+sql "CREATE INDEX ON vector_search_benchmark USING hnsw (embedding vector_cosine_ops) WITH (m = $HNSW_M, ef_construction = $HNSW_EF_CONSTRUCTION)"
+
+# Runs one query with EXPLAIN ANALYZE and prints its execution time in ms
+measure() {
+  $PSQL -q -t -A <<SQL | sed -n 's/^Execution Time: \(.*\) ms$/\1/p'
+SET hnsw.ef_search = $HNSW_EF_SEARCH;
+SET hnsw.iterative_scan = relaxed_order;
+EXPLAIN (ANALYZE) $1;
+SQL
+}
+
+average() {
+  awk '{ sum += $1; n++ } END { if (n > 0) printf "%.2f", sum / n }'
+}
+
+rows=0
+printf "%10s %12s %12s\n" "rows" "json ms" "column ms"
+for target in $STEPS; do
+  sql "INSERT INTO vector_search_benchmark (metadata, embedding)
+       SELECT json_build_object('room', 'room-' || (random() * ($ROOMS - 1))::int), v.embedding
+       FROM generate_series(1, $((target - rows))) g,
+            LATERAL (SELECT array_agg(random()::real)::vector AS embedding FROM generate_series(1, $DIMENSIONS) WHERE g > 0) v"
+  sql "ANALYZE vector_search_benchmark"
+  rows=$target
+
+  json_times=()
+  column_times=()
+  for _ in $(seq "$QUERIES"); do
+    room="room-$((RANDOM % ROOMS))"
+    query="'$(awk -v n="$DIMENSIONS" -v seed="$RANDOM" 'BEGIN { srand(seed); printf "["; for (i = 1; i <= n; i++) printf "%s%.6f", (i > 1 ? "," : ""), rand(); printf "]" }')'::vector"
+    json_times+=("$(measure "SELECT id FROM vector_search_benchmark WHERE metadata::jsonb @@ '\$.room == \"$room\"'::jsonpath ORDER BY embedding <=> $query LIMIT $TOP_K")")
+    column_times+=("$(measure "SELECT id FROM vector_search_benchmark WHERE room = '$room' ORDER BY embedding <=> $query LIMIT $TOP_K")")
+  done
+
+  printf "%10s %12s %12s\n" "$rows" \
+    "$(printf "%s\n" "${json_times[@]}" | average)" \
+    "$(printf "%s\n" "${column_times[@]}" | average)"
+done
+
+sql "DROP TABLE vector_search_benchmark"
@@ -6,6 +6,7 @@ from fastapi.responses import FileResponse,StreamingResponse
 from pydantic import BaseModel
 import uvicorn
 
+import asyncio
 import os
 import time
 from pathlib import Path
@@ -335,6 +336,9 @@ async def tts_to_audio(request: SynthesisRequest, background_tasks: BackgroundTa
             logger.error(e)
             raise HTTPException(status_code=500, detail=f"Error: {str(e)}")
 
+# Locks that keep appended text batches of one session in order
+session_locks = {}
+
 @app.post('/tts_stream_to_file')
 async def tts_stream_to_chunked_files(request: Request, background_tasks: BackgroundTasks):
     try:
@@ -342,6 +346,10 @@ async def tts_stream_to_chunked_files(request: Request, background_tasks: Backgr
         text = data["text"]
         speaker_name = data["speaker_name"]
         language = data["language"]
+        # Optional: append to an existing session instead of starting a new one
+        session_uuid = data.get("uuid")
+        # Optional: False if more text for this session will follow
+        final = data.get("final", True)
     except Exception as e:
         raise HTTPException(status_code=400, detail=f"Invalid JSON body: {str(e)}")
 
@@ -357,13 +365,20 @@ async def tts_stream_to_chunked_files(request: Request, background_tasks: Backgr
     if language.lower() not in supported_languages:
         raise HTTPException(status_code=400, detail="Invalid or unsupported language code.")
 
-    uuid_str = str(uuid4())
-    chunk_dir = Path(OUTPUT_FOLDER) / "chunks" / uuid_str
-    chunk_dir.mkdir(parents=True, exist_ok=True)
-    print(f"[ChunkStream] Preparing to write chunks to {chunk_dir}")
+    if session_uuid:
+        uuid_str = session_uuid
+        chunk_dir = Path(OUTPUT_FOLDER) / "chunks" / uuid_str
+        if uuid_str not in session_locks or not chunk_dir.is_dir():
+            raise HTTPException(status_code=404, detail="Session not found.")
+    else:
+        uuid_str = str(uuid4())
+        chunk_dir = Path(OUTPUT_FOLDER) / "chunks" / uuid_str
+        chunk_dir.mkdir(parents=True, exist_ok=True)
+        session_locks[uuid_str] = asyncio.Lock()
+        print(f"[ChunkStream] Preparing to write chunks to {chunk_dir}")
 
     # Schedule the generation task
-    background_tasks.add_task(generate_chunks_background, text, speaker_path, language.lower(), chunk_dir)
+    background_tasks.add_task(generate_chunks_background, text, speaker_path, language.lower(), chunk_dir, uuid_str, final)
 
     # Respond immediately with UUID and output location
     return {
@@ -373,62 +388,75 @@ async def tts_stream_to_chunked_files(request: Request, background_tasks: Backgr
     }
 
 # Background chunk generation function
-async def generate_chunks_background(text, speaker_path, language, chunk_dir):
-    try:
-        import numpy as np
-        import soundfile as sf
-        import time
+async def generate_chunks_background(text, speaker_path, language, chunk_dir, uuid_str, final=True):
+    import numpy as np
+    import soundfile as sf
+    import time
 
-        speaker_ref = str(speaker_path)
+    sample_rate = 24000
+    min_duration_sec = 1.5
+    min_samples = int(sample_rate * min_duration_sec)
 
-        # === Start TTS streaming ===
-        chunks = XTTS.process_tts_to_file(
-            text=text,
-            speaker_name_or_path=speaker_ref,
-            language=language,
-            stream=True,
-        )
+    lock = session_locks.get(uuid_str)
+    try:
+        async with lock:
+            # Continue numbering after the chunks of earlier batches of this session
+            index = len(list(chunk_dir.glob("*.wav"))) + 1
+            buffer_np = np.array([], dtype=np.int16)
+
+            if text.strip():
+                speaker_ref = str(speaker_path)
+
+                # === Start TTS streaming ===
+                chunks = XTTS.process_tts_to_file(
+                    text=text,
+                    speaker_name_or_path=speaker_ref,
+                    language=language,
+                    stream=True,
+                )
 
-        sample_rate = 24000
-        min_duration_sec = 1.5
-        min_samples = int(sample_rate * min_duration_sec)
+                start_time = time.time()
+                total_audio_duration_sec = 0.0
 
-        buffer_np = np.array([], dtype=np.int16)
-        index = 1
-        start_time = time.time()
-        total_audio_duration_sec = 0.0
+                while True:
+                    try:
+                        current_chunk = await chunks.__anext__()
+                    except StopAsyncIteration:
+                        break
 
-        while True:
-            try:
-                current_chunk = await chunks.__anext__()
-            except StopAsyncIteration:
-                break
+                    chunk_np = np.frombuffer(current_chunk, dtype=np.int16)
+                    buffer_np = np.concatenate([buffer_np, chunk_np])
 
-            chunk_np = np.frombuffer(current_chunk, dtype=np.int16)
-            buffer_np = np.concatenate([buffer_np, chunk_np])
+                    # Always keep some audio back, so the last chunk of the session can be marked final
+                    while len(buffer_np) > min_samples:
+                        chunk_data = buffer_np[:min_samples]
+                        buffer_np = buffer_np[min_samples:]
 
-            while len(buffer_np) >= min_samples:
-                chunk_data = buffer_np[:min_samples]
-                buffer_np = buffer_np[min_samples:]
+                        filename = chunk_dir / f"{index:04d}p.wav"
+                        sf.write(str(filename), chunk_data, sample_rate)
 
-                filename = chunk_dir / f"{index:04d}p.wav"
-                sf.write(str(filename), chunk_data, sample_rate)
+                        chunk_duration = len(chunk_data) / sample_rate
+                        total_audio_duration_sec += chunk_duration
+                        elapsed = time.time() - start_time
+                        rtf = elapsed / total_audio_duration_sec if total_audio_duration_sec > 0 else 0
 
-                chunk_duration = len(chunk_data) / sample_rate
-                total_audio_duration_sec += chunk_duration
-                elapsed = time.time() - start_time
-                rtf = elapsed / total_audio_duration_sec if total_audio_duration_sec > 0 else 0
+                        #print(f"[ChunkStream] Wrote chunk {index:04d}p.wav → {chunk_duration:.2f}s (RTF: {rtf:.2f})")
+                        index += 1
 
-                #print(f"[ChunkStream] Wrote chunk {index:04d}p.wav → {chunk_duration:.2f}s (RTF: {rtf:.2f})")
-                index += 1
+            if final and len(buffer_np) == 0:
+                # wav2lip needs a final chunk long enough for one mel window to end the stream
+                buffer_np = np.zeros(int(sample_rate * 0.5), dtype=np.int16)
 
-        if len(buffer_np) > 0:
-            filename = chunk_dir / f"{index:04d}f.wav"
-            sf.write(str(filename), buffer_np, sample_rate)
-            #print(f"[ChunkStream] Wrote final chunk {index:04d}f.wav → {len(buffer_np)/sample_rate:.2f}s")
+            if len(buffer_np) > 0:
+                filename = chunk_dir / f"{index:04d}{'f' if final else 'p'}.wav"
+                sf.write(str(filename), buffer_np, sample_rate)
+                #print(f"[ChunkStream] Wrote final chunk {filename.name} → {len(buffer_np)/sample_rate:.2f}s")
 
     except Exception as e:
         logger.error(f"🚩 Streaming to chunked files failed in background: {e}")
+    finally:
+        if final:
+            session_locks.pop(uuid_str, None)
 
 
 
@@ -0,0 +1,69 @@
+package com.github.avatar.service;
+
+import com.github.avatar.dto.HlsPlaylist;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-update work of the playlist websocket with many active streams: subscribing a playlist in
+ * FileWatchService when a client connects and dropping it when it disconnects, and reading the playlist on a change.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlaylistWatchBenchmark {
+    @Param({"1000", "10000"})
+    private int activeStreams;
+
+    private Path root;
+    private Path playlist;
+    private FileWatchService fileWatchService;
+    private final List<Runnable> subscriptions = new ArrayList<>();
+
+    @Setup
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("playlist-benchmark");
+        fileWatchService = new FileWatchService();
+        // Streams that are still waiting for their directory, like freshly started renders
+        for (int i = 0; i < activeStreams; i++) {
+            subscriptions.add(fileWatchService.subscribe(root.resolve(UUID.randomUUID().toString()).resolve("video").resolve("playlist.m3u8"), path -> {}));
+        }
+
+        playlist = root.resolve("playlist.m3u8");
+        StringBuilder content = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-TARGETDURATION:2\n#EXT-X-MEDIA-SEQUENCE:0\n");
+        for (int i = 0; i < 50; i++) {
+            content.append("#EXTINF:2.000000,\nsegment").append(i).append(".ts\n");
+        }
+        Files.writeString(playlist, content);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        subscriptions.forEach(Runnable::run);
+        fileWatchService.destroy();
+        Files.deleteIfExists(playlist);
+        Files.deleteIfExists(root);
+    }
+
+    @Benchmark
+    public void subscribeAndUnsubscribe() {
+        Runnable unsubscribe = fileWatchService.subscribe(root.resolve(UUID.randomUUID().toString()).resolve("video").resolve("playlist.m3u8"), path -> {});
+        unsubscribe.run();
+    }
+
+    @Benchmark
+    public HlsPlaylist.Segment readNewestSegment() throws IOException {
+        List<HlsPlaylist.Segment> segments = HlsPlaylist.read(playlist).segments();
+        return segments.get(segments.size() - 1);
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.avatar.service;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.ai.document.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * The CPU work LLMService does on every generated answer: removing think blocks and building the reference list.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseBuildingBenchmark {
+    private static final Pattern THINK = Pattern.compile("(?s)<think>.*?</think>");
+
+    @Param({"1024", "8192"})
+    private int answerLength;
+
+    @Param({"4", "20"})
+    private int documents;
+
+    private String content;
+    private List<Document> relevantDocs;
+
+    @Setup
+    public void setup() {
+        StringBuilder answer = new StringBuilder("<think>");
+        while (answer.length() < answerLength) {
+            answer.append("The student asks about the lecture, so I should look at the slides first. ");
+        }
+        answer.append("</think>");
+        while (answer.length() < answerLength * 2) {
+            answer.append("Recursion means that a function calls itself until a base case is reached. ");
+        }
+        content = answer.toString();
+
+        relevantDocs = new ArrayList<>();
+        for (int i = 0; i < documents; i++) {
+            relevantDocs.add(new Document("chunk " + i, Map.of("file_name", "lecture" + (i % 3) + ".pdf", "page_number", i % 5)));
+        }
+    }
+
+    @Benchmark
+    public String stripThinking() {
+        return LLMService.stripThinking(content);
+    }
+
+    @Benchmark
+    public String stripThinkingPrecompiled() {
+        return THINK.matcher(content).replaceAll("").trim();
+    }
+
+    @Benchmark
+    public String stripThinkingSegmenter() {
+        SentenceSegmenter segmenter = new SentenceSegmenter(20);
+        segmenter.accept(content);
+        segmenter.flush();
+        return segmenter.getVisibleText().trim();
+    }
+
+    @Benchmark
+    public List<String> references() {
+        return LLMService.references("/2025/SoSe/Mustermann/Informatik", relevantDocs);
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.avatar.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.avatar.dto.RoomDTO;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of Keycloak group payloads into RoomDTOs, as done for every room of a user when the room list is loaded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoomMappingBenchmark {
+    private static final String GROUP = """
+            {"id":"5f1c2a7e-9d4b-4c1e-8a2f-3b6d7e8f9a01","name":"Informatik","path":"/2025/SoSe/Mustermann/Informatik",
+            "parentId":"0a1b2c3d-4e5f-6071-8293-a4b5c6d7e8f9","subGroupCount":0,"subGroups":[],
+            "attributes":{"owner":["b3c4d5e6-f7a8-4b9c-8d0e-1f2a3b4c5d6e"],"icon":["computer"]},
+            "realmRoles":[],"clientRoles":{},"access":{"view":true,"viewMembers":true,"manageMembers":true,"manage":true,"manageMembership":true}}
+            """;
+
+    private record GroupRepresentation(String id, String name, String path, Map<String, List<String>> attributes) {}
+
+    @Param({"1", "50"})
+    private int groups;
+
+    private ObjectMapper objectMapper;
+    private List<byte[]> payloads;
+
+    @Setup
+    public void setup() {
+        objectMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        payloads = new ArrayList<>();
+        for (int i = 0; i < groups; i++) {
+            payloads.add(GROUP.getBytes());
+        }
+    }
+
+    @Benchmark
+    public List<RoomDTO> mapThenConvert() throws IOException {
+        List<RoomDTO> rooms = new ArrayList<>(payloads.size());
+        for (byte[] payload : payloads) {
+            Map<String, Object> group = objectMapper.readValue(payload, new TypeReference<Map<String, Object>>() {});
+            rooms.add(KeycloakService.toRoom((String) group.get("path"), group));
+        }
+        return rooms;
+    }
+
+    @Benchmark
+    public List<RoomDTO> typedRepresentation() throws IOException {
+        List<RoomDTO> rooms = new ArrayList<>(payloads.size());
+        for (byte[] payload : payloads) {
+            GroupRepresentation group = objectMapper.readValue(payload, GroupRepresentation.class);
+            rooms.add(new RoomDTO(group.id(), group.path(), group.name(), group.attributes()));
+        }
+        return rooms;
+    }
+}
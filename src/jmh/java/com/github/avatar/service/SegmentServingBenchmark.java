@@ -0,0 +1,149 @@
+package com.github.avatar.service;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SegmentService.serve for the second viewer of a segment (memory-mapped cache), an uncached file copied with
+ * transferTo, an uncached file handed to Tomcat's sendfile and a range request. The body is written to a loopback
+ * socket that is drained by another thread, like a response to a player.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SegmentServingBenchmark {
+    @Param({"262144", "2097152"})
+    private int segmentBytes;
+
+    private Path directory;
+    private Path cachedSegment;
+    private Path uncachedSegment;
+    private SegmentService segmentService;
+    private ServerSocketChannel server;
+    private SocketChannel client;
+    private Thread drain;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] content = new byte[segmentBytes];
+        ThreadLocalRandom.current().nextBytes(content);
+        directory = Files.createTempDirectory("segment-benchmark");
+        cachedSegment = Files.write(directory.resolve("chunk_0000.ts"), content);
+        uncachedSegment = Files.write(directory.resolve("chunk_0001.ts"), content);
+
+        segmentService = new SegmentService();
+        ReflectionTestUtils.setField(segmentService, "maxCacheBytes", 268435456L);
+        ReflectionTestUtils.setField(segmentService, "cacheTtlSeconds", 3600L);
+
+        server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = SocketChannel.open(server.getLocalAddress());
+        SocketChannel accepted = server.accept();
+        drain = Thread.ofPlatform().daemon().start(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+            try {
+                while (accepted.read(buffer.clear()) >= 0) {
+                    // discard
+                }
+            } catch (IOException e) {
+                // closed on tear down
+            }
+        });
+
+        // The first viewer maps the segment into the cache
+        segmentService.serve(cachedSegment, "video/MP2T", true, new MockHttpServletRequest("GET", "/"), new SocketResponse(client));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        client.close();
+        server.close();
+        drain.join();
+        Files.deleteIfExists(cachedSegment);
+        Files.deleteIfExists(uncachedSegment);
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public int cached() throws IOException {
+        return serve(cachedSegment, true, new MockHttpServletRequest("GET", "/"));
+    }
+
+    @Benchmark
+    public int uncachedTransferTo() throws IOException {
+        return serve(uncachedSegment, false, new MockHttpServletRequest("GET", "/"));
+    }
+
+    @Benchmark
+    public int uncachedSendfile() throws IOException {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+        request.setAttribute("org.apache.tomcat.sendfile.support", true);
+        return serve(uncachedSegment, false, request);
+    }
+
+    @Benchmark
+    public int cachedRange() throws IOException {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+        request.addHeader(HttpHeaders.RANGE, "bytes=" + segmentBytes / 2 + "-");
+        return serve(cachedSegment, true, request);
+    }
+
+    private int serve(Path segment, boolean cacheable, MockHttpServletRequest request) throws IOException {
+        SocketResponse response = new SocketResponse(client);
+        segmentService.serve(segment, "video/MP2T", cacheable, request, response);
+        return response.getStatus();
+    }
+
+    private static class SocketResponse extends MockHttpServletResponse {
+        private final ServletOutputStream outputStream;
+
+        SocketResponse(SocketChannel channel) {
+            this.outputStream = new ServletOutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                }
+            };
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return outputStream;
+        }
+    }
+}
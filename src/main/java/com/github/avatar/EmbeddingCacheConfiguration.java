@@ -0,0 +1,39 @@
+package com.github.avatar;
+
+import com.github.avatar.embedding.CachingEmbeddingModel;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Wraps the auto-configured EmbeddingModel in a {@link CachingEmbeddingModel}, so the vector store,
+ * the response cache and the ingestion all share the same embedding cache.
+ */
+@Configuration
+public class EmbeddingCacheConfiguration {
+
+    @Bean
+    public static BeanPostProcessor cachingEmbeddingModelPostProcessor(Environment environment, ObjectProvider<JdbcTemplate> jdbcTemplate, ObjectProvider<MeterRegistry> meterRegistry) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (!(bean instanceof EmbeddingModel embeddingModel) || bean instanceof CachingEmbeddingModel
+                        || !environment.getProperty("embedding-cache.enabled", Boolean.class, true)) {
+                    return bean;
+                }
+
+                boolean persistent = environment.getProperty("embedding-cache.persistent", Boolean.class, true);
+                return new CachingEmbeddingModel(embeddingModel,
+                        environment.getProperty("spring.ai.openai.embedding.options.model", "text-embedding-ada-002"),
+                        environment.getProperty("embedding-cache.max-entries", Integer.class, 10000),
+                        persistent ? jdbcTemplate.getIfAvailable() : null,
+                        meterRegistry.getObject());
+            }
+        };
+    }
+}
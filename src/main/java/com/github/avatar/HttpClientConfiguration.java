@@ -0,0 +1,91 @@
+package com.github.avatar;
+
+import io.netty.channel.ChannelOption;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.ReactorClientHttpRequestFactory;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.client.RestClient;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * One pooled, keep-alive HTTP client per upstream service. Each upstream gets its own bounded
+ * connection pool, so a slow GPU service cannot starve the Keycloak calls and vice versa.
+ */
+@Configuration
+public class HttpClientConfiguration implements DisposableBean {
+    @Value("${http.client.connect-timeout-ms:5000}")
+    private int connectTimeoutMs;
+
+    @Value("${http.client.max-idle-time-seconds:30}")
+    private long maxIdleTimeSeconds;
+
+    @Value("${http.client.pending-acquire-timeout-ms:30000}")
+    private long pendingAcquireTimeoutMs;
+
+    private final List<ConnectionProvider> connectionProviders = new CopyOnWriteArrayList<>();
+
+    @Bean
+    public WebClient keycloakWebClient(@Value("${http.client.keycloak.max-connections:50}") int maxConnections,
+                                       @Value("${http.client.keycloak.read-timeout-ms:10000}") long readTimeoutMs) {
+        HttpClient httpClient = createHttpClient("keycloak", maxConnections, Duration.ofMillis(readTimeoutMs));
+        return WebClient.builder()
+                .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .build();
+    }
+
+    @Bean
+    public RestClient sttRestClient(@Value("${http.client.whisper.max-connections:8}") int maxConnections,
+                                    @Value("${http.client.whisper.read-timeout-ms:120000}") long readTimeoutMs) {
+        return createRestClient("whisper", maxConnections, Duration.ofMillis(readTimeoutMs));
+    }
+
+    @Bean
+    public RestClient ttsRestClient(@Value("${http.client.xtts.max-connections:8}") int maxConnections,
+                                    @Value("${http.client.xtts.read-timeout-ms:120000}") long readTimeoutMs) {
+        return createRestClient("xtts", maxConnections, Duration.ofMillis(readTimeoutMs));
+    }
+
+    @Bean
+    public RestClient videoRestClient(@Value("${http.client.wav2lip.max-connections:8}") int maxConnections,
+                                      @Value("${http.client.wav2lip.read-timeout-ms:120000}") long readTimeoutMs) {
+        return createRestClient("wav2lip", maxConnections, Duration.ofMillis(readTimeoutMs));
+    }
+
+    private RestClient createRestClient(String name, int maxConnections, Duration readTimeout) {
+        ReactorClientHttpRequestFactory requestFactory = new ReactorClientHttpRequestFactory(createHttpClient(name, maxConnections, readTimeout));
+        requestFactory.setReadTimeout(readTimeout);
+        return RestClient.builder()
+                .requestFactory(requestFactory)
+                .build();
+    }
+
+    private HttpClient createHttpClient(String name, int maxConnections, Duration readTimeout) {
+        ConnectionProvider connectionProvider = ConnectionProvider.builder(name)
+                .maxConnections(maxConnections)
+                .maxIdleTime(Duration.ofSeconds(maxIdleTimeSeconds))
+                .pendingAcquireTimeout(Duration.ofMillis(pendingAcquireTimeoutMs))
+                .metrics(true)
+                .build();
+        connectionProviders.add(connectionProvider);
+
+        return HttpClient.create(connectionProvider)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMs)
+                .keepAlive(true)
+                .responseTimeout(readTimeout)
+                .metrics(true, uri -> name);
+    }
+
+    @Override
+    public void destroy() {
+        connectionProviders.forEach(ConnectionProvider::dispose);
+    }
+}
@@ -0,0 +1,56 @@
+package com.github.avatar.advisor;
+
+import org.springframework.ai.chat.client.ChatClientRequest;
+import org.springframework.ai.chat.client.ChatClientResponse;
+import org.springframework.ai.chat.client.advisor.api.AdvisorChain;
+import org.springframework.ai.chat.client.advisor.api.BaseAdvisor;
+import org.springframework.ai.chat.prompt.PromptTemplate;
+import org.springframework.ai.document.Document;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Adds already retrieved documents to the user message, like QuestionAnswerAdvisor does, but without
+ * running its own similarity search. The documents are passed per call with the {@link #DOCUMENTS} param,
+ * so the caller can reuse the same retrieval result for the prompt and for the references it returns.
+ */
+public class DocumentContextAdvisor implements BaseAdvisor {
+    public static final String DOCUMENTS = "document_context_documents";
+
+    private final PromptTemplate promptTemplate;
+    private final int order;
+
+    public DocumentContextAdvisor(PromptTemplate promptTemplate, int order) {
+        this.promptTemplate = promptTemplate;
+        this.order = order;
+    }
+
+    @Override
+    public ChatClientRequest before(ChatClientRequest chatClientRequest, AdvisorChain advisorChain) {
+        @SuppressWarnings("unchecked")
+        List<Document> documents = (List<Document>) chatClientRequest.context().getOrDefault(DOCUMENTS, List.of());
+        String documentContext = documents.stream()
+                .map(Document::getText)
+                .collect(Collectors.joining(System.lineSeparator()));
+
+        String augmentedUserText = promptTemplate.render(Map.of(
+                "query", chatClientRequest.prompt().getUserMessage().getText(),
+                "question_answer_context", documentContext));
+
+        return chatClientRequest.mutate()
+                .prompt(chatClientRequest.prompt().augmentUserMessage(augmentedUserText))
+                .build();
+    }
+
+    @Override
+    public ChatClientResponse after(ChatClientResponse chatClientResponse, AdvisorChain advisorChain) {
+        return chatClientResponse;
+    }
+
+    @Override
+    public int getOrder() {
+        return order;
+    }
+}
@@ -1,35 +1,87 @@
 package com.github.avatar.controller;
 
 import com.github.avatar.dto.AvatarResponse;
+import com.github.avatar.dto.QueueStatusDTO;
+import com.github.avatar.service.AdmissionService;
 import com.github.avatar.service.PipelineService;
+import com.github.avatar.service.PipelineListener;
 import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.security.oauth2.jwt.Jwt;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 @RequestMapping("/ai")
 public class AiController {
+    @Value("${metrics.timing-header.enabled:false}")
+    private boolean timingHeader;
+
     private final PipelineService pipelineService;
+    private final AdmissionService admissionService;
 
-    public AiController(PipelineService pipelineService) {
+    public AiController(PipelineService pipelineService, AdmissionService admissionService) {
         this.pipelineService = pipelineService;
+        this.admissionService = admissionService;
     }
 
     public record AvatarTextRequest(String text, String roomPath) {}
 
 
     @PostMapping("/text")
-    public AvatarResponse requestLlmResponse(@AuthenticationPrincipal Jwt jwt, @RequestBody AvatarTextRequest avatarTextRequest) throws InterruptedException {
-        return pipelineService.processText(avatarTextRequest.text(), avatarTextRequest.roomPath(), jwt);
+    public CompletableFuture<ResponseEntity<AvatarResponse>> requestLlmResponse(@AuthenticationPrincipal Jwt jwt, @RequestBody AvatarTextRequest avatarTextRequest) {
+        ServerTimingListener timings = new ServerTimingListener();
+        return pipelineService.processText(avatarTextRequest.text(), avatarTextRequest.roomPath(), jwt, timingHeader ? timings : PipelineListener.NONE)
+                .thenApply(response -> withTimings(response, timings));
     }
 
     @PostMapping("/audio")
-    public AvatarResponse requestSttResponse(@AuthenticationPrincipal Jwt jwt, HttpServletRequest request, @RequestParam("file") MultipartFile file, @RequestParam("roomPath") String roomPath, @RequestParam(value = "chatId", required = false) String chatId) throws IOException, InterruptedException {
+    public CompletableFuture<ResponseEntity<AvatarResponse>> requestSttResponse(@AuthenticationPrincipal Jwt jwt, HttpServletRequest request, @RequestParam("file") MultipartFile file, @RequestParam("roomPath") String roomPath, @RequestParam(value = "chatId", required = false) String chatId) throws IOException {
+        ByteArrayResource fileResource = new ByteArrayResource(file.getBytes()) {
+            @Override
+            public String getFilename() {
+                return file.getOriginalFilename();
+            }
+        };
+
+        ServerTimingListener timings = new ServerTimingListener();
+        return pipelineService.processAudio(fileResource, roomPath, jwt, timingHeader ? timings : PipelineListener.NONE)
+                .thenApply(response -> withTimings(response, timings));
+    }
+
+    private ResponseEntity<AvatarResponse> withTimings(AvatarResponse response, ServerTimingListener timings) {
+        if (!timingHeader) {
+            return ResponseEntity.ok(response);
+        }
+        return ResponseEntity.ok()
+                .header(ServerTimingListener.HEADER, timings.toHeaderValue())
+                .body(response);
+    }
+
+    @GetMapping("/queue")
+    public List<QueueStatusDTO> getQueueStatus(@RequestParam("roomPath") String roomPath) {
+        return admissionService.getQueueStatus(roomPath);
+    }
+
+    @PostMapping(value = "/text/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamLlmResponse(@AuthenticationPrincipal Jwt jwt, @RequestBody AvatarTextRequest avatarTextRequest) {
+        AvatarEventEmitter emitter = new AvatarEventEmitter();
+        pipelineService.streamText(avatarTextRequest.text(), avatarTextRequest.roomPath(), jwt, emitter)
+                .whenComplete(emitter::finish);
+        return emitter;
+    }
+
+    @PostMapping(value = "/audio/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamSttResponse(@AuthenticationPrincipal Jwt jwt, @RequestParam("file") MultipartFile file, @RequestParam("roomPath") String roomPath) throws IOException {
         ByteArrayResource fileResource = new ByteArrayResource(file.getBytes()) {
             @Override
             public String getFilename() {
@@ -37,6 +89,9 @@ public class AiController {
             }
         };
 
-        return pipelineService.processAudio(fileResource, roomPath, jwt);
+        AvatarEventEmitter emitter = new AvatarEventEmitter();
+        pipelineService.streamAudio(fileResource, roomPath, jwt, emitter)
+                .whenComplete(emitter::finish);
+        return emitter;
     }
 }
@@ -0,0 +1,77 @@
+package com.github.avatar.controller;
+
+import com.github.avatar.Main;
+import com.github.avatar.dto.AvatarResponse;
+import com.github.avatar.service.OverloadedException;
+import com.github.avatar.service.PipelineListener;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Sends the intermediate results of a pipeline run as typed server-sent events:
+ * queue, transcription, token, uuid, references and finally done with the complete response, or error.
+ */
+public class AvatarEventEmitter extends SseEmitter implements PipelineListener {
+    private volatile boolean closed;
+
+    public AvatarEventEmitter() {
+        onCompletion(() -> closed = true);
+        onTimeout(() -> closed = true);
+        onError(e -> closed = true);
+    }
+
+    @Override
+    public void onQueued(String upstream, int position) {
+        sendEvent("queue", Map.of("upstream", upstream, "position", position));
+    }
+
+    @Override
+    public void onTranscription(String text) {
+        sendEvent("transcription", Map.of("text", text));
+    }
+
+    @Override
+    public void onToken(String text) {
+        sendEvent("token", Map.of("text", text));
+    }
+
+    @Override
+    public void onStreamingUuid(String streamingUuid) {
+        sendEvent("uuid", Map.of("streamingUUID", streamingUuid));
+    }
+
+    /**
+     * Sends the closing events for a finished pipeline run and completes the stream.
+     */
+    public void finish(AvatarResponse response, Throwable error) {
+        if (error != null) {
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause instanceof OverloadedException overloaded) {
+                sendEvent("error", Map.of("message", "The avatar is busy.", "retryAfterSeconds", overloaded.getRetryAfterSeconds()));
+            } else {
+                Main.LOGGER.error("Pipeline failed: ", cause);
+                sendEvent("error", Map.of("message", "The response could not be generated."));
+            }
+        } else {
+            sendEvent("references", Map.of("references", response.responseText().references()));
+            sendEvent("done", response);
+        }
+        complete();
+    }
+
+    private void sendEvent(String name, Object data) {
+        if (closed) {
+            return;
+        }
+        try {
+            send(event().name(name).data(data, MediaType.APPLICATION_JSON));
+        } catch (IOException | IllegalStateException e) {
+            // The client went away, the pipeline still finishes so its results can be cached
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.github.avatar.controller;
+
+import com.github.avatar.service.OverloadedException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+import java.util.Map;
+
+@RestControllerAdvice
+public class OverloadExceptionHandler {
+
+    @ExceptionHandler(OverloadedException.class)
+    public ResponseEntity<Map<String, Object>> handleOverload(OverloadedException e) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .body(Map.of("upstream", e.getUpstream(), "queued", e.getQueued(), "retryAfterSeconds", e.getRetryAfterSeconds()));
+    }
+}
@@ -1,44 +1,105 @@
 package com.github.avatar.controller;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.avatar.Main;
+import com.github.avatar.dto.HlsPlaylist;
+import com.github.avatar.service.FileWatchService;
+import com.github.avatar.service.OutputRetentionService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import jakarta.websocket.OnClose;
 import jakarta.websocket.OnError;
 import jakarta.websocket.OnOpen;
 import jakarta.websocket.Session;
 import jakarta.websocket.server.PathParam;
 import jakarta.websocket.server.ServerEndpoint;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 @ServerEndpoint("/ws/{uuid}")
 @Component
 public class PlaylistController {
+    // Endpoint instances are created by the websocket container, so Spring dependencies are shared statically
+    private static String outputPath;
+    private static FileWatchService fileWatchService;
+    private static OutputRetentionService outputRetentionService;
+    private static Timer pushLagTimer;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final Map<String, PlaylistSubscription> activeConnections = new ConcurrentHashMap<>();
+
+    public record SegmentUpdate(String type, String segment, double duration) {}
+
+    private static class PlaylistSubscription {
+        private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+        private int pushedSegments;
+        private Runnable unsubscribe;
+        private Runnable unpin;
+    }
+
     @Value("${output_path}")
-    private String outputPath;
+    public void setOutputPath(String outputPath) {
+        PlaylistController.outputPath = outputPath;
+    }
 
-    private static final Map<String, Set<Session>> activeConnections = new ConcurrentHashMap<>();
-    private static final Map<String, Long> lastModifiedTimes = new ConcurrentHashMap<>();
+    @Autowired
+    public void setFileWatchService(FileWatchService fileWatchService) {
+        PlaylistController.fileWatchService = fileWatchService;
+    }
 
+    @Autowired
+    public void setOutputRetentionService(OutputRetentionService outputRetentionService) {
+        PlaylistController.outputRetentionService = outputRetentionService;
+    }
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        PlaylistController.pushLagTimer = Timer.builder("avatar.playlist.push-lag")
+                .description("Time from the playlist update on disk to the websocket push")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
 
     @OnOpen
     public void onOpen(Session session, @PathParam("uuid") String uuid) {
-        activeConnections.computeIfAbsent(uuid, k -> ConcurrentHashMap.newKeySet()).add(session);
+        activeConnections.compute(uuid, (k, subscription) -> {
+            if (subscription != null) {
+                subscription.sessions.add(session);
+                return subscription;
+            }
+
+            PlaylistSubscription created = new PlaylistSubscription();
+            created.sessions.add(session);
+            // The session directory must not be deleted while a client is watching it
+            created.unpin = outputRetentionService.pin(uuid);
+            Path m3u8Path = Paths.get(outputPath, uuid, "video", "playlist.m3u8");
+            created.unsubscribe = fileWatchService.subscribe(m3u8Path, path -> notifyUpdates(uuid, created, path));
+            return created;
+        });
     }
 
     @OnClose
     public void onClose(Session session, @PathParam("uuid") String uuid) {
-        Set<Session> sessions = activeConnections.get(uuid);
-        if (sessions != null) {
-            sessions.remove(session);
-        }
+        activeConnections.computeIfPresent(uuid, (k, subscription) -> {
+            subscription.sessions.remove(session);
+            if (!subscription.sessions.isEmpty()) {
+                return subscription;
+            }
+            subscription.unsubscribe.run();
+            subscription.unpin.run();
+            return null;
+        });
     }
 
     @OnError
@@ -46,37 +107,55 @@ public class PlaylistController {
         onClose(session, uuid);
     }
 
-    @Scheduled(fixedDelay = 500)
-    public void notifyUpdates() {
-        for (Map.Entry<String, Set<Session>> entry : activeConnections.entrySet()) {
-            String uuid = entry.getKey();
-            Path m3u8Path = Paths.get(outputPath, uuid, "video", "playlist.m3u8");
-            if (Files.exists(m3u8Path)) {
-                try {
-                    long mtime = Files.getLastModifiedTime(m3u8Path).toMillis();
-                    long lastMtime = lastModifiedTimes.getOrDefault(uuid, 0L);
-
-                    if (mtime > lastMtime) {
-                        lastModifiedTimes.put(uuid, mtime);
-                        Set<Session> sessions = entry.getValue();
-
-                        for (Session session : sessions) {
-                            try {
-                                session.getBasicRemote().sendText("update");
-                            } catch (IOException e) {
-                                try {
-                                    session.close();
-                                } catch (IOException ex) {
-                                    // ignore
-                                }
-                            }
-                        }
-                    }
-                } catch (IOException e) {
-                    // ignore
-                }
+    private static void notifyUpdates(String uuid, PlaylistSubscription subscription, Path m3u8Path) {
+        HlsPlaylist playlist;
+        try {
+            playlist = HlsPlaylist.read(m3u8Path);
+        } catch (IOException e) {
+            return;
+        }
+        List<HlsPlaylist.Segment> segments = playlist.segments();
+
+        synchronized (subscription) {
+            if (segments.size() <= subscription.pushedSegments) {
+                return;
             }
+            subscription.pushedSegments = segments.size();
+        }
+
+        // Only the newest segment is announced, the player picks up any earlier ones from the playlist itself
+        HlsPlaylist.Segment segment = segments.get(segments.size() - 1);
+        String message;
+        try {
+            message = objectMapper.writeValueAsString(new SegmentUpdate("update", segment.name(), segment.duration()));
+        } catch (JsonProcessingException e) {
+            Main.LOGGER.error("Could not serialize playlist update for {}: ", uuid, e);
+            return;
+        }
+
+        for (Session session : subscription.sessions) {
+            sendAsync(session, message);
         }
+        pushLagTimer.record(Math.max(0, System.currentTimeMillis() - playlist.lastModified()), TimeUnit.MILLISECONDS);
     }
 
+    private static void sendAsync(Session session, String message) {
+        try {
+            session.getAsyncRemote().sendText(message, result -> {
+                if (!result.isOK()) {
+                    close(session);
+                }
+            });
+        } catch (IllegalStateException e) {
+            // previous message is still being written to this client, it will pick up the segment with the next update
+        }
+    }
+
+    private static void close(Session session) {
+        try {
+            session.close();
+        } catch (IOException ex) {
+            // ignore
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package com.github.avatar.controller;
 
+import com.github.avatar.dto.IngestionJobDTO;
 import com.github.avatar.service.PipelineService;
 import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.core.io.Resource;
@@ -25,7 +26,7 @@ public class ReferenceController {
     }
 
     @PostMapping("/upload")
-    public ResponseEntity<Void> uploadPdf(@AuthenticationPrincipal Jwt jwt, @RequestParam("file") MultipartFile file, @RequestParam("roomPath") String roomPath) throws IOException {
+    public ResponseEntity<IngestionJobDTO> uploadPdf(@AuthenticationPrincipal Jwt jwt, @RequestParam("file") MultipartFile file, @RequestParam("roomPath") String roomPath) throws IOException {
         if (roomPath != null && !roomPath.isEmpty()) {
             return pipelineService.savePdf(jwt, file.getResource(), roomPath);
         } else {
@@ -33,6 +34,11 @@ public class ReferenceController {
         }
     }
 
+    @GetMapping("/jobs/{jobId}")
+    public ResponseEntity<IngestionJobDTO> getIngestionJob(@AuthenticationPrincipal Jwt jwt, @PathVariable String jobId) {
+        return pipelineService.getIngestionJob(jwt, jobId);
+    }
+
     @RequestMapping(value = "/get/**", method = RequestMethod.GET)
     public ResponseEntity<Resource> downloadPdf(@AuthenticationPrincipal Jwt jwt, HttpServletRequest request) throws IOException {
         String path = URLDecoder.decode(request.getRequestURI().split("/get/")[1], StandardCharsets.UTF_8);
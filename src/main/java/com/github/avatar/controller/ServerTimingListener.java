@@ -0,0 +1,35 @@
+package com.github.avatar.controller;
+
+import com.github.avatar.service.PipelineListener;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+
+/**
+ * Collects the stage times of one pipeline run for the Server-Timing response header.
+ */
+public class ServerTimingListener implements PipelineListener {
+    public static final String HEADER = "Server-Timing";
+
+    private record Stage(String name, String upstream, Duration duration, boolean success) {}
+
+    private final Queue<Stage> stages = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public void onStage(String stage, String upstream, Duration duration, boolean success) {
+        stages.add(new Stage(stage, upstream, duration, success));
+    }
+
+    /**
+     * The stages that have finished so far, e.g. {@code retrieval;desc="postgres";dur=12.3}. Failed stages are described
+     * as e.g. {@code "wav2lip failed"}.
+     */
+    public String toHeaderValue() {
+        return stages.stream()
+                .map(stage -> String.format(Locale.ROOT, "%s;desc=\"%s%s\";dur=%.1f", stage.name(), stage.upstream(), stage.success() ? "" : " failed", stage.duration().toNanos() / 1_000_000d))
+                .collect(Collectors.joining(", "));
+    }
+}
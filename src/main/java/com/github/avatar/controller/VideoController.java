@@ -1,65 +1,87 @@
 package com.github.avatar.controller;
 
+import com.github.avatar.dto.HlsPlaylist;
+import com.github.avatar.service.OutputRetentionService;
+import com.github.avatar.service.PlaylistService;
+import com.github.avatar.service.SegmentService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
 
 @RestController
 public class VideoController {
     @Value("${output_path}")
     private String outputPath;
 
+    private final SegmentService segmentService;
+    private final PlaylistService playlistService;
+    private final OutputRetentionService outputRetentionService;
 
-    @GetMapping("/stream/{uuid}/playlist.m3u8")
-    public ResponseEntity<StreamingResponseBody> getPlaylist(@PathVariable String uuid) {
-        Path path = Paths.get(outputPath, uuid, "video", "playlist.m3u8");
-        if (!Files.exists(path)) {
-            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null);
-        }
-
-        StreamingResponseBody stream = outputStream -> Files.copy(path, outputStream);
-
-        return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_TYPE, "application/vnd.apple.mpegurl")
-                .body(stream);
+    public VideoController(SegmentService segmentService, PlaylistService playlistService, OutputRetentionService outputRetentionService) {
+        this.segmentService = segmentService;
+        this.playlistService = playlistService;
+        this.outputRetentionService = outputRetentionService;
     }
 
-    @RequestMapping(value = "/stream/{uuid}/playlist.m3u8", method = RequestMethod.HEAD)
-    public ResponseEntity<Void> headPlaylist(@PathVariable String uuid) throws IOException {
-        Path path = Paths.get(outputPath, uuid, "video", "playlist.m3u8");
-        if (!Files.exists(path)) {
+    @GetMapping("/stream/{uuid}/playlist.m3u8")
+    public ResponseEntity<String> getPlaylist(@PathVariable String uuid) throws IOException {
+        HlsPlaylist playlist = playlistService.getPlaylist(uuid);
+        if (playlist == null) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
         }
+        outputRetentionService.touch(uuid);
+        return playlistResponse(playlist);
+    }
 
-        long size = Files.size(path);
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentLength(size);
-        headers.setContentType(MediaType.valueOf("application/vnd.apple.mpegurl"));
-
-        return new ResponseEntity<>(headers, HttpStatus.OK);
+    @GetMapping(value = "/stream/{uuid}/playlist.m3u8", params = "_HLS_msn")
+    public CompletableFuture<ResponseEntity<String>> getBlockingPlaylist(@PathVariable String uuid, @RequestParam("_HLS_msn") long mediaSequence, @RequestParam(value = "_HLS_part", required = false) Long part) {
+        // Segments are not split into parts, so a request for any part is satisfied by the complete segment
+        return playlistService.awaitMediaSequence(uuid, mediaSequence).handle((playlist, error) -> {
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause == null) {
+                return playlistResponse(playlist);
+            } else if (cause instanceof IllegalArgumentException) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+            } else if (cause instanceof TimeoutException) {
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+            }
+            throw new CompletionException(cause);
+        });
     }
 
     @GetMapping("/stream/{uuid}/{filename}")
-    public ResponseEntity<StreamingResponseBody> getSegment(@PathVariable String uuid, @PathVariable String filename) {
+    public void getSegment(@PathVariable String uuid, @PathVariable String filename, HttpServletRequest request, HttpServletResponse response) throws IOException {
         Path path = Paths.get(outputPath, uuid, "video", filename);
-        if (!Files.exists(path)) {
-            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null);
+        if (!segmentService.serve(path, "video/MP2T", true, request, response)) {
+            response.setStatus(HttpStatus.NOT_FOUND.value());
         }
-
-        StreamingResponseBody stream = outputStream -> Files.copy(path, outputStream);
-
-        return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_TYPE, "video/MP2T")
-                .body(stream);
     }
 
+    // A live playlist can change several times within the one-second resolution of Last-Modified, so it is
+    // revalidated by an ETag of its content and only gets Last-Modified once it has ended
+    private ResponseEntity<String> playlistResponse(HlsPlaylist playlist) {
+        String body = playlist.render();
+        String etag = "\"" + Integer.toHexString(body.length()) + "-" + Integer.toHexString(body.hashCode()) + "\"";
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_TYPE, "application/vnd.apple.mpegurl")
+                .eTag(etag);
+        if (playlist.ended()) {
+            response.lastModified(playlist.lastModified());
+        } else {
+            response.cacheControl(CacheControl.noCache());
+        }
+        return response.body(body);
+    }
 }
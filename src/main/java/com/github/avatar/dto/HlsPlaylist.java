@@ -0,0 +1,60 @@
+package com.github.avatar.dto;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public record HlsPlaylist(long mediaSequence, List<Segment> segments, boolean ended, long lastModified, List<String> lines) {
+    public static final String SERVER_CONTROL = "#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES";
+
+    public record Segment(String name, double duration) {}
+
+    public static HlsPlaylist read(Path path) throws IOException {
+        long lastModified = Files.getLastModifiedTime(path).toMillis();
+        List<String> lines = Files.readAllLines(path);
+
+        long mediaSequence = 0;
+        boolean ended = false;
+        List<Segment> segments = new ArrayList<>();
+        Double duration = null;
+        for (String line : lines) {
+            if (line.startsWith("#EXT-X-MEDIA-SEQUENCE:")) {
+                mediaSequence = Long.parseLong(line.substring("#EXT-X-MEDIA-SEQUENCE:".length()).strip());
+            } else if (line.startsWith("#EXT-X-ENDLIST")) {
+                ended = true;
+            } else if (line.startsWith("#EXTINF:")) {
+                String value = line.substring("#EXTINF:".length());
+                int comma = value.indexOf(',');
+                duration = Double.parseDouble(comma >= 0 ? value.substring(0, comma) : value);
+            } else if (duration != null && !line.isBlank() && !line.startsWith("#")) {
+                segments.add(new Segment(line.strip(), duration));
+                duration = null;
+            }
+        }
+        return new HlsPlaylist(mediaSequence, segments, ended, lastModified, lines);
+    }
+
+    /**
+     * Media sequence number of the newest segment, or mediaSequence - 1 while the playlist is still empty.
+     */
+    public long lastMediaSequence() {
+        return mediaSequence + segments.size() - 1;
+    }
+
+    /**
+     * The playlist as served to players, advertising blocking playlist reloads.
+     */
+    public String render() {
+        List<String> rendered = new ArrayList<>(lines);
+        if (!rendered.contains(SERVER_CONTROL)) {
+            int index = 0;
+            while (index < rendered.size() && !rendered.get(index).startsWith("#EXT-X-TARGETDURATION")) {
+                index++;
+            }
+            rendered.add(index < rendered.size() ? index + 1 : Math.min(1, rendered.size()), SERVER_CONTROL);
+        }
+        return String.join("\n", rendered) + "\n";
+    }
+}
@@ -0,0 +1,4 @@
+package com.github.avatar.dto;
+
+public record IngestionJobDTO(String jobId, String fileName, String state, int totalPages, int parsedPages, int totalDocuments, int storedDocuments, int skippedDocuments, String error) {
+}
@@ -0,0 +1,4 @@
+package com.github.avatar.dto;
+
+public record QueueStatusDTO(String upstream, int active, int limit, int queued, int position) {
+}
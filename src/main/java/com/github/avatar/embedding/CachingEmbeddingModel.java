@@ -0,0 +1,169 @@
+package com.github.avatar.embedding;
+
+import com.github.avatar.Main;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.document.MetadataMode;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Caches embeddings in front of another EmbeddingModel, keyed by model name and SHA-256 of the text.
+ * Lookups go to an in-memory LRU first and then to a Postgres table, only the remaining texts are sent
+ * to the delegate in one request. Errors of the persistent tier are logged and treated as misses.
+ */
+public class CachingEmbeddingModel implements EmbeddingModel {
+    private final EmbeddingModel delegate;
+    private final String defaultModel;
+    private final JdbcTemplate jdbcTemplate;
+    private final Map<String, float[]> memoryCache;
+    private final Counter memoryHits;
+    private final Counter persistentHits;
+    private final Counter misses;
+    private volatile boolean tableCreated;
+
+    public CachingEmbeddingModel(EmbeddingModel delegate, String defaultModel, int maxEntries, JdbcTemplate jdbcTemplate, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.defaultModel = defaultModel;
+        this.jdbcTemplate = jdbcTemplate;
+        this.memoryCache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, float[]> eldest) {
+                return size() > maxEntries;
+            }
+        });
+        this.memoryHits = Counter.builder("avatar.embedding.cache").tag("result", "hit").tag("tier", "memory").register(meterRegistry);
+        this.persistentHits = Counter.builder("avatar.embedding.cache").tag("result", "hit").tag("tier", "persistent").register(meterRegistry);
+        this.misses = Counter.builder("avatar.embedding.cache").tag("result", "miss").tag("tier", "none").register(meterRegistry);
+    }
+
+    @Override
+    public EmbeddingResponse call(EmbeddingRequest request) {
+        String model = request.getOptions() != null && request.getOptions().getModel() != null ? request.getOptions().getModel() : defaultModel;
+        List<String> texts = request.getInstructions();
+        float[][] vectors = new float[texts.size()][];
+
+        Map<String, List<Integer>> missingKeys = new LinkedHashMap<>();
+        for (int i = 0; i < texts.size(); i++) {
+            String key = model + ":" + sha256(texts.get(i));
+            vectors[i] = memoryCache.get(key);
+            if (vectors[i] != null) {
+                memoryHits.increment();
+            } else {
+                missingKeys.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+            }
+        }
+
+        if (!missingKeys.isEmpty()) {
+            loadPersistent(missingKeys.keySet()).forEach((key, vector) -> {
+                memoryCache.put(key, vector);
+                missingKeys.remove(key).forEach(i -> vectors[i] = vector);
+                persistentHits.increment();
+            });
+        }
+
+        if (!missingKeys.isEmpty()) {
+            List<String> keys = new ArrayList<>(missingKeys.keySet());
+            List<String> missingTexts = keys.stream().map(key -> texts.get(missingKeys.get(key).get(0))).toList();
+            EmbeddingResponse response = delegate.call(new EmbeddingRequest(missingTexts, request.getOptions()));
+
+            Map<String, float[]> computed = new LinkedHashMap<>();
+            for (Embedding embedding : response.getResults()) {
+                String key = keys.get(embedding.getIndex());
+                computed.put(key, embedding.getOutput());
+                memoryCache.put(key, embedding.getOutput());
+                missingKeys.get(key).forEach(i -> vectors[i] = embedding.getOutput());
+            }
+            misses.increment(missingTexts.size());
+            storePersistent(computed);
+        }
+
+        List<Embedding> embeddings = new ArrayList<>(vectors.length);
+        for (int i = 0; i < vectors.length; i++) {
+            embeddings.add(new Embedding(vectors[i], i));
+        }
+        return new EmbeddingResponse(embeddings);
+    }
+
+    @Override
+    public float[] embed(Document document) {
+        return embed(document.getFormattedContent(MetadataMode.EMBED));
+    }
+
+    @Override
+    public int dimensions() {
+        return delegate.dimensions();
+    }
+
+    private Map<String, float[]> loadPersistent(Collection<String> keys) {
+        Map<String, float[]> found = new HashMap<>();
+        if (jdbcTemplate == null) {
+            return found;
+        }
+        try {
+            ensureTable();
+            jdbcTemplate.query("SELECT cache_key, embedding FROM embedding_cache WHERE cache_key = ANY(?)",
+                    rs -> {
+                        found.put(rs.getString(1), fromBytes(rs.getBytes(2)));
+                    },
+                    (Object) keys.toArray(String[]::new));
+        } catch (Exception e) {
+            Main.LOGGER.warn("Could not read the embedding cache: {}", e.getMessage());
+        }
+        return found;
+    }
+
+    private void storePersistent(Map<String, float[]> embeddings) {
+        if (jdbcTemplate == null || embeddings.isEmpty()) {
+            return;
+        }
+        try {
+            ensureTable();
+            jdbcTemplate.batchUpdate("INSERT INTO embedding_cache (cache_key, embedding) VALUES (?, ?) ON CONFLICT (cache_key) DO NOTHING",
+                    embeddings.entrySet(), embeddings.size(), (ps, entry) -> {
+                        ps.setString(1, entry.getKey());
+                        ps.setBytes(2, toBytes(entry.getValue()));
+                    });
+        } catch (Exception e) {
+            Main.LOGGER.warn("Could not write the embedding cache: {}", e.getMessage());
+        }
+    }
+
+    private void ensureTable() {
+        if (!tableCreated) {
+            jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS embedding_cache (cache_key text PRIMARY KEY, embedding bytea NOT NULL, created_at timestamptz NOT NULL DEFAULT now())");
+            tableCreated = true;
+        }
+    }
+
+    private static byte[] toBytes(float[] vector) {
+        ByteBuffer buffer = ByteBuffer.allocate(vector.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asFloatBuffer().put(vector);
+        return buffer.array();
+    }
+
+    private static float[] fromBytes(byte[] bytes) {
+        float[] vector = new float[bytes.length / Float.BYTES];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(vector);
+        return vector;
+    }
+
+    private static String sha256(String text) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.github.avatar.service;
+
+import com.github.avatar.dto.QueueStatusDTO;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+
+/**
+ * Limits how many requests run on each GPU service at the same time. Requests that find no free slot wait in a
+ * bounded queue that is served round-robin per room, so one busy lecture cannot starve the others. A full queue
+ * rejects right away with an {@link OverloadedException}.
+ */
+@Service
+public class AdmissionService {
+    public static final String WHISPER = "whisper";
+    public static final String XTTS = "xtts";
+    public static final String WAV2LIP = "wav2lip";
+
+    private final Map<String, UpstreamQueue> upstreams = new LinkedHashMap<>();
+    private final long maxWaitMs;
+
+    public AdmissionService(Environment environment) {
+        int maxQueuePerRoom = environment.getProperty("admission.max-queue-per-room", Integer.class, 8);
+        this.maxWaitMs = environment.getProperty("admission.max-wait-ms", Long.class, 60000L);
+        for (String upstream : List.of(WHISPER, XTTS, WAV2LIP)) {
+            upstreams.put(upstream, new UpstreamQueue(upstream,
+                    environment.getProperty("admission." + upstream + ".max-concurrent", Integer.class, 1),
+                    environment.getProperty("admission." + upstream + ".max-queue", Integer.class, 32),
+                    maxQueuePerRoom));
+        }
+    }
+
+    /**
+     * A slot on one upstream. Releasing it more than once has no effect.
+     */
+    public static class Permit {
+        private final Runnable release;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(Runnable release) {
+            this.release = release;
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                release.run();
+            }
+        }
+    }
+
+    /**
+     * Throws if a request of the room would be rejected by one of the upstreams right now. Used before starting
+     * work that ends up on these upstreams, so overload is reported before the LLM is called.
+     */
+    public void checkCapacity(String room, String... upstreamNames) {
+        for (String upstream : upstreamNames) {
+            upstreams.get(upstream).checkCapacity(room);
+        }
+    }
+
+    /**
+     * Completes with a permit once a slot is free. Throws right away if the queue is full, the future fails with an
+     * OverloadedException if the request waited longer than admission.max-wait-ms.
+     * The queue listener gets the position whenever the request has to wait.
+     */
+    public CompletableFuture<Permit> acquire(String upstream, String room, IntConsumer queueListener) {
+        return upstreams.get(upstream).acquire(room, queueListener);
+    }
+
+    /**
+     * Acquires slots on several upstreams, always in the same order so two requests never wait for each other.
+     * The returned permit releases all of them.
+     */
+    public CompletableFuture<Permit> acquireAll(String room, IntConsumer queueListener, String... upstreamNames) {
+        checkCapacity(room, upstreamNames);
+        CompletableFuture<List<Permit>> permits = CompletableFuture.completedFuture(new ArrayList<>());
+        for (String upstream : upstreamNames) {
+            permits = permits.thenCompose(acquired -> acquireNext(acquired, upstream, room, queueListener));
+        }
+        return permits.thenApply(acquired -> new Permit(() -> acquired.forEach(Permit::release)));
+    }
+
+    // Gives back the slots acquired so far if the next one cannot be had
+    private CompletableFuture<List<Permit>> acquireNext(List<Permit> acquired, String upstream, String room, IntConsumer queueListener) {
+        CompletableFuture<Permit> next;
+        try {
+            next = acquire(upstream, room, queueListener);
+        } catch (RuntimeException e) {
+            acquired.forEach(Permit::release);
+            throw e;
+        }
+        return next.whenComplete((permit, error) -> {
+            if (error != null) {
+                acquired.forEach(Permit::release);
+            }
+        }).thenApply(permit -> {
+            acquired.add(permit);
+            return acquired;
+        });
+    }
+
+    public List<QueueStatusDTO> getQueueStatus(String room) {
+        return upstreams.values().stream().map(queue -> queue.status(room)).toList();
+    }
+
+    private class UpstreamQueue {
+        private final String name;
+        private final int maxConcurrent;
+        private final int maxQueue;
+        private final int maxQueuePerRoom;
+        // Insertion order of the rooms is the round-robin order
+        private final LinkedHashMap<String, Deque<CompletableFuture<Permit>>> waiting = new LinkedHashMap<>();
+        private int active;
+        private int queued;
+        private double averageHoldMs = 5000;
+
+        UpstreamQueue(String name, int maxConcurrent, int maxQueue, int maxQueuePerRoom) {
+            this.name = name;
+            this.maxConcurrent = maxConcurrent;
+            this.maxQueue = maxQueue;
+            this.maxQueuePerRoom = maxQueuePerRoom;
+        }
+
+        synchronized void checkCapacity(String room) {
+            if (active < maxConcurrent) {
+                return;
+            }
+            Deque<CompletableFuture<Permit>> roomQueue = waiting.get(room);
+            if (queued >= maxQueue || (roomQueue != null && roomQueue.size() >= maxQueuePerRoom)) {
+                throw overloaded();
+            }
+        }
+
+        CompletableFuture<Permit> acquire(String room, IntConsumer queueListener) {
+            CompletableFuture<Permit> future = new CompletableFuture<>();
+            int position;
+            synchronized (this) {
+                if (active < maxConcurrent && queued == 0) {
+                    active++;
+                    future.complete(newPermit());
+                    return future;
+                }
+                checkCapacity(room);
+                waiting.computeIfAbsent(room, k -> new ArrayDeque<>()).addLast(future);
+                queued++;
+                position = position(room);
+            }
+            queueListener.accept(position);
+
+            CompletableFuture.delayedExecutor(maxWaitMs, TimeUnit.MILLISECONDS).execute(() -> {
+                if (remove(room, future)) {
+                    future.completeExceptionally(overloaded());
+                }
+            });
+            return future;
+        }
+
+        private Permit newPermit() {
+            long start = System.currentTimeMillis();
+            return new Permit(() -> release(System.currentTimeMillis() - start));
+        }
+
+        private void release(long heldMs) {
+            synchronized (this) {
+                averageHoldMs = averageHoldMs * 0.8 + heldMs * 0.2;
+            }
+
+            // The slot passes on directly to the next waiting request, so active stays the same
+            while (true) {
+                CompletableFuture<Permit> next;
+                synchronized (this) {
+                    next = pollNext();
+                    if (next == null) {
+                        active--;
+                        return;
+                    }
+                }
+                if (next.complete(newPermit())) {
+                    return;
+                }
+            }
+        }
+
+        private CompletableFuture<Permit> pollNext() {
+            Iterator<Map.Entry<String, Deque<CompletableFuture<Permit>>>> rooms = waiting.entrySet().iterator();
+            if (!rooms.hasNext()) {
+                return null;
+            }
+            Map.Entry<String, Deque<CompletableFuture<Permit>>> first = rooms.next();
+            CompletableFuture<Permit> next = first.getValue().pollFirst();
+            rooms.remove();
+            if (!first.getValue().isEmpty()) {
+                waiting.put(first.getKey(), first.getValue());
+            }
+            queued--;
+            return next;
+        }
+
+        private synchronized boolean remove(String room, CompletableFuture<Permit> future) {
+            Deque<CompletableFuture<Permit>> roomQueue = waiting.get(room);
+            if (roomQueue == null || !roomQueue.remove(future)) {
+                return false;
+            }
+            if (roomQueue.isEmpty()) {
+                waiting.remove(room);
+            }
+            queued--;
+            return true;
+        }
+
+        // 1-based position of the next waiting request of the room in the round-robin order, 0 if it is not waiting
+        private int position(String room) {
+            Deque<CompletableFuture<Permit>> roomQueue = waiting.get(room);
+            if (roomQueue == null) {
+                return 0;
+            }
+            int depth = roomQueue.size() - 1;
+            int position = 1;
+            boolean before = true;
+            for (Map.Entry<String, Deque<CompletableFuture<Permit>>> entry : waiting.entrySet()) {
+                if (entry.getKey().equals(room)) {
+                    before = false;
+                    continue;
+                }
+                position += Math.min(entry.getValue().size(), depth);
+                if (before && entry.getValue().size() > depth) {
+                    position++;
+                }
+            }
+            return position + depth;
+        }
+
+        // Retry-After estimate: the time until everything queued now has had its turn
+        private synchronized OverloadedException overloaded() {
+            long retryAfterSeconds = Math.max(1, (long) Math.ceil(averageHoldMs * (queued + 1) / maxConcurrent / 1000));
+            return new OverloadedException(name, queued, retryAfterSeconds);
+        }
+
+        synchronized QueueStatusDTO status(String room) {
+            return new QueueStatusDTO(name, active, maxConcurrent, queued, position(room));
+        }
+    }
+}
@@ -10,10 +10,12 @@ import java.io.IOException;
 public class AvatarService {
     private final TTSService ttsService;
     private final VideoService videoService;
+    private final RenderCacheService renderCacheService;
 
-    public AvatarService(TTSService ttsService, VideoService videoService) {
+    public AvatarService(TTSService ttsService, VideoService videoService, RenderCacheService renderCacheService) {
         this.ttsService = ttsService;
         this.videoService = videoService;
+        this.renderCacheService = renderCacheService;
     }
 
     public void saveAvatar(Jwt jwt, MultipartFile voiceAudio, MultipartFile faceImage) throws IOException {
@@ -21,5 +23,7 @@ public class AvatarService {
         ttsService.cloneVoice(userId, voiceAudio.getBytes());
         this.videoService.clearFace(userId);
         this.videoService.saveFaceImage(userId, faceImage.getBytes());
+        // Renders with the old voice and face must not be served anymore
+        renderCacheService.invalidate(userId);
     }
 }
@@ -0,0 +1,155 @@
+package com.github.avatar.service;
+
+import com.github.avatar.Main;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Notifies listeners when watched files are created or modified. All listeners share one {@link WatchService}
+ * and one watcher thread; directories that do not exist yet are picked up as soon as they are created.
+ * Listeners run on the watcher thread and must not block.
+ */
+@Service
+public class FileWatchService implements DisposableBean {
+    private final WatchService watchService;
+    private final Thread watcherThread;
+
+    private final Map<Path, List<Consumer<Path>>> listeners = new ConcurrentHashMap<>();
+    private final Map<Path, WatchKey> watchedDirectories = new ConcurrentHashMap<>();
+
+    public FileWatchService() throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.watcherThread = Thread.ofPlatform().name("file-watcher").daemon().start(this::processEvents);
+    }
+
+    /**
+     * Returns a future that completes with the file once it exists, or exceptionally with a
+     * {@link java.util.concurrent.TimeoutException} if it does not appear within the timeout.
+     */
+    public CompletableFuture<Path> awaitFile(Path file, Duration timeout) {
+        CompletableFuture<Path> future = new CompletableFuture<>();
+        Runnable unsubscribe = subscribe(file, future::complete);
+        future.whenComplete((path, error) -> unsubscribe.run());
+        return future.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Calls the listener whenever the file is created or modified, and once right away if it already exists.
+     * Returns a handle that removes the listener again.
+     */
+    public Runnable subscribe(Path file, Consumer<Path> listener) {
+        Path target = file.toAbsolutePath().normalize();
+        synchronized (this) {
+            listeners.computeIfAbsent(target, k -> new CopyOnWriteArrayList<>()).add(listener);
+            watch(target.getParent());
+        }
+
+        if (Files.exists(target)) {
+            listener.accept(target);
+        }
+        return () -> unsubscribe(target, listener);
+    }
+
+    private synchronized void watch(Path directory) {
+        Path existing = directory;
+        while (existing != null && !Files.isDirectory(existing)) {
+            existing = existing.getParent();
+        }
+        if (existing == null) {
+            return;
+        }
+
+        watchedDirectories.computeIfAbsent(existing, dir -> {
+            try {
+                return dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+            } catch (IOException e) {
+                Main.LOGGER.error("Could not watch directory {}: ", dir, e);
+                return null;
+            }
+        });
+    }
+
+    private void processEvents() {
+        while (!Thread.currentThread().isInterrupted()) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    listeners.keySet().forEach(this::notifyIfExists);
+                    continue;
+                }
+
+                Path child = directory.resolve((Path) event.context());
+                if (Files.isDirectory(child)) {
+                    listeners.keySet().stream()
+                            .filter(file -> file.startsWith(child))
+                            .forEach(file -> {
+                                watch(file.getParent());
+                                notifyIfExists(file);
+                            });
+                } else {
+                    notifyIfExists(child);
+                }
+            }
+
+            if (!key.reset()) {
+                watchedDirectories.remove(directory, key);
+            }
+        }
+    }
+
+    private void notifyIfExists(Path file) {
+        List<Consumer<Path>> fileListeners = listeners.get(file);
+        if (fileListeners == null || !Files.exists(file)) {
+            return;
+        }
+
+        for (Consumer<Path> listener : fileListeners) {
+            try {
+                listener.accept(file);
+            } catch (RuntimeException e) {
+                Main.LOGGER.error("File listener for {} failed: ", file, e);
+            }
+        }
+    }
+
+    private synchronized void unsubscribe(Path target, Consumer<Path> listener) {
+        listeners.computeIfPresent(target, (path, fileListeners) -> {
+            fileListeners.remove(listener);
+            return fileListeners.isEmpty() ? null : fileListeners;
+        });
+
+        watchedDirectories.entrySet().removeIf(entry -> {
+            boolean unused = listeners.keySet().stream().noneMatch(file -> file.startsWith(entry.getKey()));
+            if (unused) {
+                entry.getValue().cancel();
+            }
+            return unused;
+        });
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        watcherThread.interrupt();
+        watchService.close();
+    }
+}
@@ -4,11 +4,13 @@ import com.github.avatar.dto.RoomCreationDTO;
 import com.github.avatar.dto.RoomDTO;
 import com.github.avatar.dto.UserDTO;
 import com.github.avatar.dto.UserSearchDTO;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import jakarta.annotation.Nullable;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
 import org.springframework.security.oauth2.jwt.Jwt;
 import org.springframework.stereotype.Service;
 import org.springframework.util.LinkedMultiValueMap;
@@ -20,27 +22,29 @@ import reactor.core.publisher.Mono;
 
 import java.net.URI;
 import java.util.*;
+import java.util.function.Function;
 
 @Service
 public class KeycloakService {
     @Value("${keycloak.admin-url}")
     private String adminUrl;
 
-    @Value("${keycloak.admin-token}")
-    private String adminToken;
+    private final KeycloakTokenService tokenService;
+    private final WebClient webClient;
+    private final MeterRegistry meterRegistry;
+
+    public KeycloakService(KeycloakTokenService tokenService, @Qualifier("keycloakWebClient") WebClient webClient, MeterRegistry meterRegistry) {
+        this.tokenService = tokenService;
+        this.webClient = webClient;
+        this.meterRegistry = meterRegistry;
+    }
 
-    @Value("${keycloak.token-url}")
-    private String tokenUrl;
-    
     public List<RoomDTO> findAllRooms(String userId) {
-        String token = getAdminAccessToken();
-        WebClient webClient = WebClient.builder().build();
-    
-        List<Map<String, Object>> groups = webClient.get()
+        List<Map<String, Object>> groups = withAdminToken("user-groups", token -> webClient.get()
             .uri(adminUrl + "/users/" + userId + "/groups")
             .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
             .retrieve()
-            .bodyToMono(new ParameterizedTypeReference<List<Map<String, Object>>>() {})
+            .bodyToMono(new ParameterizedTypeReference<List<Map<String, Object>>>() {}))
             .block();
     
         List<RoomDTO> rooms = new ArrayList<>();
@@ -79,39 +83,33 @@ public class KeycloakService {
     }
 
     private void createSubGroup(String parent, String path, String name, Map<String, List<String>> attributes) {
-        String token = getAdminAccessToken();
-        WebClient webClient = WebClient.builder().build();
-
         Map<String, Object> body = new LinkedHashMap<>();
         body.put("name", name);
         body.put("path", path);
         body.put("attributes", attributes);
         body.put("parentId", parent);
 
-        webClient.post()
+        withAdminToken("create-sub-group", token -> webClient.post()
                 .uri(adminUrl + "/groups/" + parent + "/children")
                 .body(Mono.just(body), Map.class)
                 .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
                 .retrieve()
-                .bodyToMono(Void.class)
+                .bodyToMono(Void.class))
                 .block();
     }
 
     private void createGroup(String path, String name, Map<String, List<String>> attributes) {
-        String token = getAdminAccessToken();
-        WebClient webClient = WebClient.builder().build();
-
         Map<String, Object> body = new LinkedHashMap<>();
         body.put("name", name);
         body.put("path", path);
         body.put("attributes", attributes);
 
-        webClient.post()
+        withAdminToken("create-group", token -> webClient.post()
                 .uri(adminUrl + "/groups")
                 .body(Mono.just(body), Map.class)
                 .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
                 .retrieve()
-                .bodyToMono(Void.class)
+                .bodyToMono(Void.class))
                 .block();
     }
 
@@ -135,29 +133,27 @@ public class KeycloakService {
     }
 
     private RoomDTO fetchGroupInfo(String path) {
-        String token = getAdminAccessToken();
-        WebClient webClient = WebClient.builder().build();
-
-        var group = webClient.get()
+        var group = withAdminToken("group-by-path", token -> webClient.get()
                 .uri(adminUrl + "/group-by-path" + path)
                 .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
                 .retrieve()
-                .bodyToMono(new ParameterizedTypeReference<Map<String, Object>>() {})
+                .bodyToMono(new ParameterizedTypeReference<Map<String, Object>>() {}))
                 .block();
 
+        return toRoom(path, group);
+    }
+
+    static RoomDTO toRoom(String path, Map<String, Object> group) {
         Map<String, List<String>> attributes = (Map<String, List<String>>) group.get("attributes");
         return new RoomDTO(group.get("id").toString(), path, (String) group.get("name"), attributes);
     }
 
     public String getGroupOwnerIdByGroupId(String groupId) {
-        String token = getAdminAccessToken();
-        WebClient webClient = WebClient.builder().build();
-
-        var group = webClient.get()
+        var group = withAdminToken("group", token -> webClient.get()
                 .uri(adminUrl + "/groups/" + groupId)
                 .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
                 .retrieve()
-                .bodyToMono(new ParameterizedTypeReference<Map<String, Object>>() {})
+                .bodyToMono(new ParameterizedTypeReference<Map<String, Object>>() {}))
                 .block();
         if (group == null || group.isEmpty() || !group.containsKey("attributes")) {
             return "";
@@ -166,88 +162,85 @@ public class KeycloakService {
     }
 
     public String getGroupOwnerIdByGroupPath(String groupPath) {
-        String token = getAdminAccessToken();
-        WebClient webClient = WebClient.builder().build();
+        return getGroupOwnerIdByGroupPathAsync(groupPath).block();
+    }
 
-        var group = webClient.get()
+    public Mono<String> getGroupOwnerIdByGroupPathAsync(String groupPath) {
+        return withAdminToken("group-by-path", token -> webClient.get()
                 .uri(adminUrl + "/group-by-path" + groupPath)
                 .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
                 .retrieve()
-                .bodyToMono(new ParameterizedTypeReference<Map<String, Object>>() {})
-                .block();
-        if (group == null || group.isEmpty() || !group.containsKey("attributes")) {
-            return "";
-        }
-        return ((List<String>)((Map<?, ?>) group.get("attributes")).get("owner")).get(0);
+                .bodyToMono(new ParameterizedTypeReference<Map<String, Object>>() {}))
+                .filter(group -> group.containsKey("attributes"))
+                .map(group -> ((List<String>)((Map<?, ?>) group.get("attributes")).get("owner")).get(0))
+                .defaultIfEmpty("");
     }
 
-    public String getAdminAccessToken() {
-        WebClient webClient = WebClient.builder().build();
-
-        MultiValueMap<String, String> formData = new LinkedMultiValueMap<>();
-        formData.add("grant_type", "client_credentials");
-        formData.add("client_id", "backend-client");
-        formData.add("client_secret", adminToken);
-
-        return webClient.post()
-                .uri(tokenUrl)
-                .contentType(MediaType.APPLICATION_FORM_URLENCODED)
-                .bodyValue(formData)
-                .retrieve()
-                .bodyToMono(Map.class)
-                .map(response -> (String) response.get("access_token"))
-                .block();
+    // Timed per operation including the token fetch, the room is not known for most admin calls
+    private <T> Mono<T> withAdminToken(String operation, Function<String, Mono<T>> request) {
+        Timer timer = Timer.builder("avatar.keycloak.request")
+                .description("Keycloak admin API call")
+                .tag("operation", operation)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        return Mono.defer(() -> {
+            Timer.Sample sample = Timer.start();
+            return Mono.fromFuture(tokenService::getAccessTokenAsync)
+                    .flatMap(token -> request.apply(token)
+                            .onErrorResume(WebClientResponseException.Unauthorized.class, e -> {
+                                tokenService.invalidate(token);
+                                return Mono.fromFuture(tokenService::getAccessTokenAsync).flatMap(request);
+                            }))
+                    .doFinally(signal -> sample.stop(timer));
+        });
     }
 
     public String getLanguage(Jwt jwt) {
-        Map<String, Object> body = getUser(jwt.getSubject());
-        Map<String, List<String>> attributes = (Map<String, List<String>>) body.get("attributes");
-        return attributes.get("language").get(0);
+        return getLanguageAsync(jwt).block();
     }
 
-    public void setLanguage(Jwt jwt, String language) {
-        String token = getAdminAccessToken();
-        WebClient webClient = WebClient.builder().build();
+    public Mono<String> getLanguageAsync(Jwt jwt) {
+        return getUserAsync(jwt.getSubject()).map(body -> {
+            Map<String, List<String>> attributes = (Map<String, List<String>>) body.get("attributes");
+            return attributes.get("language").get(0);
+        });
+    }
 
+    public void setLanguage(Jwt jwt, String language) {
         Map<String, Object> body = getUser(jwt.getSubject());
         body.put("attributes", Map.of("language", List.of(language)));
 
-        webClient.put()
+        withAdminToken("update-user", token -> webClient.put()
                 .uri(adminUrl + "/users/" + jwt.getSubject())
                 .body(Mono.just(body), Map.class)
                 .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
                 .retrieve()
-                .bodyToMono(Void.class)
+                .bodyToMono(Void.class))
                 .block();
     }
 
     public Map<String, Object> getUser(String userId) {
-        String token = getAdminAccessToken();
-        WebClient webClient = WebClient.builder().build();
+        return getUserAsync(userId).block();
+    }
 
-        return webClient.get()
+    public Mono<Map<String, Object>> getUserAsync(String userId) {
+        return withAdminToken("user", token -> webClient.get()
                 .uri(adminUrl + "/users/" + userId)
                 .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
                 .retrieve()
-                .bodyToMono(new ParameterizedTypeReference<Map<String, Object>>() {})
-                .block();
+                .bodyToMono(new ParameterizedTypeReference<Map<String, Object>>() {}));
     }
 
     public void addUserToGroup(String groupId, String userId) {
-        String token = getAdminAccessToken();
-        WebClient webClient = WebClient.builder().build();
-
-        webClient.put()
+        withAdminToken("add-user-to-group", token -> webClient.put()
                 .uri(adminUrl + "/users/" + userId + "/groups/" +  groupId)
                 .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
                 .retrieve()
-                .bodyToMono(Void.class)
+                .bodyToMono(Void.class))
                 .block();
     }
 
     public List<UserDTO> getUsers(UserSearchDTO userSearchDTO) {
-        String token = getAdminAccessToken();
-        WebClient webClient = WebClient.builder().build();
         MultiValueMap<String, String> queryParams = new LinkedMultiValueMap<>();
 
         if (userSearchDTO.firstName() != null) {
@@ -267,11 +260,11 @@ public class KeycloakService {
         }
 
         URI uri = UriComponentsBuilder.fromHttpUrl(adminUrl + "/users").queryParams(queryParams).build().toUri();
-        return webClient.get()
+        return withAdminToken("search-users", token -> webClient.get()
                 .uri(uri)
                 .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
                 .retrieve()
-                .bodyToMono(new ParameterizedTypeReference<List<UserDTO>>() {})
+                .bodyToMono(new ParameterizedTypeReference<List<UserDTO>>() {}))
                 .block();
     }
 }
@@ -0,0 +1,112 @@
+package com.github.avatar.service;
+
+import com.github.avatar.Main;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Caches the client_credentials token of the backend client and refreshes it before it expires.
+ * Concurrent callers that find the token expired share a single in-flight token request.
+ */
+@Service
+public class KeycloakTokenService {
+    @Value("${keycloak.admin-token}")
+    private String adminToken;
+
+    @Value("${keycloak.token-url}")
+    private String tokenUrl;
+
+    @Value("${keycloak.token-refresh-skew-seconds:30}")
+    private long refreshSkewSeconds;
+
+    private final WebClient webClient;
+
+    private volatile CachedToken cachedToken;
+    private CompletableFuture<CachedToken> pendingRefresh;
+
+    private record CachedToken(String value, Instant expiresAt) {}
+
+    public KeycloakTokenService(@Qualifier("keycloakWebClient") WebClient webClient) {
+        this.webClient = webClient;
+    }
+
+    public String getAccessToken() {
+        return getAccessTokenAsync().join();
+    }
+
+    public CompletableFuture<String> getAccessTokenAsync() {
+        CachedToken token = cachedToken;
+        if (token != null && Instant.now().isBefore(token.expiresAt())) {
+            return CompletableFuture.completedFuture(token.value());
+        }
+        return refresh().thenApply(CachedToken::value);
+    }
+
+    /**
+     * Drops the cached token, e.g. after Keycloak rejected it with 401.
+     */
+    public void invalidate(String rejectedToken) {
+        CachedToken token = cachedToken;
+        if (token != null && token.value().equals(rejectedToken)) {
+            cachedToken = null;
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${keycloak.token-refresh-check-ms:5000}")
+    public void refreshAhead() {
+        CachedToken token = cachedToken;
+        if (token != null && Instant.now().isAfter(token.expiresAt().minusSeconds(refreshSkewSeconds))) {
+            refresh();
+        }
+    }
+
+    private synchronized CompletableFuture<CachedToken> refresh() {
+        if (pendingRefresh != null) {
+            return pendingRefresh;
+        }
+
+        CompletableFuture<CachedToken> refresh = requestToken().toFuture();
+        pendingRefresh = refresh;
+        refresh.whenComplete((token, error) -> {
+            synchronized (this) {
+                if (token != null) {
+                    cachedToken = token;
+                } else {
+                    Main.LOGGER.error("Could not fetch keycloak admin token: ", error);
+                }
+                pendingRefresh = null;
+            }
+        });
+        return refresh;
+    }
+
+    private Mono<CachedToken> requestToken() {
+        MultiValueMap<String, String> formData = new LinkedMultiValueMap<>();
+        formData.add("grant_type", "client_credentials");
+        formData.add("client_id", "backend-client");
+        formData.add("client_secret", adminToken);
+
+        return webClient.post()
+                .uri(tokenUrl)
+                .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+                .bodyValue(formData)
+                .retrieve()
+                .bodyToMono(new ParameterizedTypeReference<Map<String, Object>>() {})
+                .map(response -> {
+                    long expiresIn = ((Number) response.getOrDefault("expires_in", 60)).longValue();
+                    return new CachedToken((String) response.get("access_token"), Instant.now().plusSeconds(expiresIn));
+                });
+    }
+}
@@ -1,31 +1,52 @@
 package com.github.avatar.service;
 
+import com.github.avatar.advisor.DocumentContextAdvisor;
 import com.github.avatar.dto.LLMResponseDTO;
 import org.springframework.ai.chat.client.ChatClient;
 import org.springframework.ai.chat.client.advisor.MessageChatMemoryAdvisor;
-import org.springframework.ai.chat.client.advisor.vectorstore.QuestionAnswerAdvisor;
 import org.springframework.ai.chat.memory.ChatMemory;
 import org.springframework.ai.chat.prompt.PromptTemplate;
 import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingModel;
 import org.springframework.ai.template.st.StTemplateRenderer;
-import org.springframework.ai.vectorstore.SearchRequest;
-import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
 
+import java.time.Duration;
 import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 @Service
 public class LLMService {
+    private static final double SIMILARITY_THRESHOLD = 0.6d;
+
+    @Value("${llm.streaming.min-sentence-length:20}")
+    private int minSentenceBatchLength;
+
+    @Value("${llm.retrieval.top-k:4}")
+    private int retrievalTopK;
+
+    @Value("${llm.retrieval.hybrid:true}")
+    private boolean hybridRetrieval;
+
     private final ChatClient chatClient;
-    private final VectorStore vectorStore;
+    private final VectorIndexService vectorIndexService;
+    private final EmbeddingModel embeddingModel;
+    private final ResponseCacheService responseCacheService;
 
-    public LLMService(ChatClient.Builder chatClientBuilder, ChatMemory chatMemory, VectorStore vectorStore) {
-        this.vectorStore = vectorStore;
+    public LLMService(ChatClient.Builder chatClientBuilder, ChatMemory chatMemory, VectorIndexService vectorIndexService, EmbeddingModel embeddingModel, ResponseCacheService responseCacheService) {
+        this.vectorIndexService = vectorIndexService;
+        this.embeddingModel = embeddingModel;
+        this.responseCacheService = responseCacheService;
         this.chatClient = chatClientBuilder
                 .defaultAdvisors(
                         MessageChatMemoryAdvisor.builder(chatMemory).build(),
-                        QuestionAnswerAdvisor.builder(vectorStore).searchRequest(SearchRequest.builder().similarityThreshold(0.6d).build()).promptTemplate(PromptTemplate.builder().renderer(StTemplateRenderer.builder().startDelimiterToken('{').endDelimiterToken('}').build()).template("""
+                        new DocumentContextAdvisor(PromptTemplate.builder().renderer(StTemplateRenderer.builder().startDelimiterToken('{').endDelimiterToken('}').build()).template("""
                                 {query}
                                 
                                 Context information is below, surrounded by ---------------------
@@ -36,27 +57,129 @@ public class LLMService {
                                 
                                 Given the context and provided history information and not prior knowledge,
                                 reply to the user comment. If the answer is not in the context, answer the question based on your own knowledge.
-                                """).build()).build())
+                                """).build(), 0))
                 .build();
     }
 
-    public LLMResponseDTO generateResponse(String input, String id) {
-        ChatClient.CallResponseSpec response = chatClient
+    /**
+     * Generates the answer and reports the embedding, retrieval and generation times to the listener.
+     */
+    public LLMResponseDTO generateResponse(String input, String id, String userId, PipelineListener listener) {
+        float[] queryEmbedding = embedForCache(input, listener);
+        Optional<LLMResponseDTO> cachedResponse = findCachedResponse(id, queryEmbedding);
+        if (cachedResponse.isPresent()) {
+            return cachedResponse.get();
+        }
+
+        List<Document> relevantDocs = retrieveDocuments(input, queryEmbedding, id, listener);
+        String content = PipelineListener.timed(listener, "generation", "openai", () -> prompt(input, id, userId, relevantDocs)
+                .call()
+                .content());
+
+        return buildResponse(stripThinking(content), relevantDocs, id, queryEmbedding);
+    }
+
+    /**
+     * Streams the answer. The token consumer gets the visible text as it grows, the sentence consumer every completed
+     * sentence batch. Completes with the full answer and its references once the model has finished. A cached answer
+     * is handed to the token consumer in one piece and never to the sentence consumer. Tokens go to the listener's
+     * onToken, besides the stage times the time to the first token is reported.
+     */
+    public CompletableFuture<LLMResponseDTO> streamResponse(String input, String id, String userId, PipelineListener listener, Consumer<String> sentenceConsumer) {
+        float[] queryEmbedding = embedForCache(input, listener);
+        Optional<LLMResponseDTO> cachedResponse = findCachedResponse(id, queryEmbedding);
+        if (cachedResponse.isPresent()) {
+            listener.onToken(cachedResponse.get().response());
+            return CompletableFuture.completedFuture(cachedResponse.get());
+        }
+
+        List<Document> relevantDocs = retrieveDocuments(input, queryEmbedding, id, listener);
+        SentenceSegmenter segmenter = new SentenceSegmenter(minSentenceBatchLength);
+        Consumer<String> tokenConsumer = listener::onToken;
+        long start = System.nanoTime();
+        AtomicBoolean firstToken = new AtomicBoolean(true);
+
+        return prompt(input, id, userId, relevantDocs)
+                .stream()
+                .content()
+                .doOnNext(token -> {
+                    // Think blocks are not visible, so the first token is the first one of the stream and counted once
+                    if (!token.isEmpty() && firstToken.compareAndSet(true, false)) {
+                        listener.onStage("first-token", "openai", Duration.ofNanos(System.nanoTime() - start), true);
+                    }
+                    int visibleLength = segmenter.getVisibleLength();
+                    List<String> sentences = segmenter.accept(token);
+                    emitDelta(segmenter, visibleLength, tokenConsumer);
+                    sentences.forEach(sentenceConsumer);
+                })
+                .then(Mono.fromCallable(() -> {
+                    listener.onStage("generation", "openai", Duration.ofNanos(System.nanoTime() - start), true);
+                    int visibleLength = segmenter.getVisibleLength();
+                    String rest = segmenter.flush();
+                    emitDelta(segmenter, visibleLength, tokenConsumer);
+                    if (!rest.isEmpty()) {
+                        sentenceConsumer.accept(rest);
+                    }
+                    return buildResponse(segmenter.getVisibleText().trim(), relevantDocs, id, queryEmbedding);
+                }))
+                .toFuture();
+    }
+
+    private static void emitDelta(SentenceSegmenter segmenter, int visibleLength, Consumer<String> tokenConsumer) {
+        if (segmenter.getVisibleLength() > visibleLength) {
+            tokenConsumer.accept(segmenter.getVisibleText(visibleLength));
+        }
+    }
+
+    // Every user gets an own conversation per room
+    private ChatClient.ChatClientRequestSpec prompt(String input, String id, String userId, List<Document> relevantDocs) {
+        return chatClient
                 .prompt()
                 .user(input)
-                .advisors(a -> a.param(ChatMemory.CONVERSATION_ID, id))
-                .advisors(a -> a.param(QuestionAnswerAdvisor.FILTER_EXPRESSION, "room == '" + id + "'"))
-                .call();
+                .advisors(a -> a.param(ChatMemory.CONVERSATION_ID, id + "|" + userId))
+                .advisors(a -> a.param(DocumentContextAdvisor.DOCUMENTS, relevantDocs));
+    }
+
+    private float[] embedForCache(String input, PipelineListener listener) {
+        if (!responseCacheService.isEnabled()) {
+            return null;
+        }
+        return PipelineListener.timed(listener, "embedding", "openai", () -> embeddingModel.embed(input));
+    }
+
+    private Optional<LLMResponseDTO> findCachedResponse(String id, float[] queryEmbedding) {
+        if (queryEmbedding == null) {
+            return Optional.empty();
+        }
+        return responseCacheService.findResponse(id, queryEmbedding);
+    }
+
+    // One search feeds both the prompt context and the returned references, it reuses the embedding of the cache lookup
+    private List<Document> retrieveDocuments(String input, float[] queryEmbedding, String id, PipelineListener listener) {
+        return PipelineListener.timed(listener, "retrieval", "postgres", () -> hybridRetrieval
+                ? vectorIndexService.hybridSearch(input, queryEmbedding, id, retrievalTopK, SIMILARITY_THRESHOLD)
+                : vectorIndexService.similaritySearch(input, queryEmbedding, id, retrievalTopK, SIMILARITY_THRESHOLD));
+    }
+
+    private LLMResponseDTO buildResponse(String textResponse, List<Document> relevantDocs, String id, float[] queryEmbedding) {
+        LLMResponseDTO llmResponse = new LLMResponseDTO(textResponse, references(id, relevantDocs));
+        if (queryEmbedding != null) {
+            responseCacheService.storeResponse(id, queryEmbedding, llmResponse);
+        }
+        return llmResponse;
+    }
+
+    static String stripThinking(String content) {
+        return content.replaceAll("(?s)<think>.*?</think>", "").trim();
+    }
 
-        String textResponse = response.content().replaceAll("(?s)<think>.*?</think>", "").trim();
-        List<Document> relevantDocs = vectorStore.similaritySearch(SearchRequest.builder().similarityThreshold(0.6d).query(input).filterExpression("room == '" + id + "'").build());
-        List<String> usedFiles = relevantDocs.stream()
+    static List<String> references(String id, List<Document> relevantDocs) {
+        return relevantDocs.stream()
                 .filter(Objects::nonNull)
                 .map(doc -> id + "/" + doc.getMetadata().get("file_name") + ":" + doc.getMetadata().get("page_number"))
                 .map(Object::toString)
                 .distinct()
                 .toList();
-        return new LLMResponseDTO(textResponse, usedFiles);
     }
 
 }
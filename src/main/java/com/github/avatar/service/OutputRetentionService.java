@@ -0,0 +1,220 @@
+package com.github.avatar.service;
+
+import com.github.avatar.Main;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Deletes the session directories in the output path that xtts and wav2lip leave behind. Directories expire after a
+ * TTL since their last use, and the least recently used ones are deleted first while the total size exceeds the
+ * quota. Directories with open websocket subscribers and renders that are still being written are never deleted.
+ */
+@Service
+public class OutputRetentionService {
+    @Value("${output_path}")
+    private String outputPath;
+
+    @Value("${output-retention.ttl-seconds:86400}")
+    private long ttlSeconds;
+
+    @Value("${output-retention.max-bytes:10737418240}")
+    private long maxBytes;
+
+    // Renders get no more writes after this long, newer directories without an ended playlist are still in progress
+    @Value("${output-retention.render-grace-seconds:600}")
+    private long renderGraceSeconds;
+
+    private final Map<String, Integer> pins = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastAccess = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong directoryCount = new AtomicLong();
+    private final Counter expired;
+    private final Counter evicted;
+    private final Counter orphans;
+
+    private record SessionDirectory(String uuid, long sizeBytes, long lastUsed, long lastModified, boolean ended) {}
+
+    public OutputRetentionService(MeterRegistry meterRegistry) {
+        Gauge.builder("avatar.output.bytes", totalBytes, AtomicLong::get).description("Total size of the session directories").baseUnit("bytes").register(meterRegistry);
+        Gauge.builder("avatar.output.directories", directoryCount, AtomicLong::get).description("Number of session directories").register(meterRegistry);
+        this.expired = Counter.builder("avatar.output.deleted").tag("reason", "ttl").register(meterRegistry);
+        this.evicted = Counter.builder("avatar.output.deleted").tag("reason", "quota").register(meterRegistry);
+        this.orphans = Counter.builder("avatar.output.deleted").tag("reason", "orphan").register(meterRegistry);
+    }
+
+    /**
+     * Protects the session directory from deletion until the returned runnable is run.
+     */
+    public Runnable pin(String uuid) {
+        pins.merge(uuid, 1, Integer::sum);
+        AtomicBoolean released = new AtomicBoolean();
+        return () -> {
+            if (released.compareAndSet(false, true)) {
+                pins.computeIfPresent(uuid, (k, count) -> count > 1 ? count - 1 : null);
+                touch(uuid);
+            }
+        };
+    }
+
+    public void touch(String uuid) {
+        lastAccess.put(uuid, System.currentTimeMillis());
+    }
+
+    /**
+     * Deletes the session directory unless it is pinned. Returns whether it was deleted.
+     */
+    public boolean delete(String uuid) {
+        if (pins.containsKey(uuid)) {
+            return false;
+        }
+        lastAccess.remove(uuid);
+        try {
+            return FileSystemUtils.deleteRecursively(Paths.get(outputPath, uuid));
+        } catch (IOException e) {
+            Main.LOGGER.error("Could not delete session directory {}: ", uuid, e);
+            return false;
+        }
+    }
+
+    /**
+     * Removes what an earlier run left behind: stray files and renders that never got an ended playlist.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void deleteOrphans() {
+        long graceLimit = System.currentTimeMillis() - renderGraceSeconds * 1000;
+        Path root = Paths.get(outputPath);
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+
+        try (Stream<Path> entries = Files.list(root)) {
+            for (Path entry : entries.toList()) {
+                if (!Files.isDirectory(entry)) {
+                    Files.deleteIfExists(entry);
+                    orphans.increment();
+                    continue;
+                }
+                SessionDirectory directory = inspect(entry);
+                if (directory != null && !directory.ended() && directory.lastModified() < graceLimit && delete(directory.uuid())) {
+                    orphans.increment();
+                }
+            }
+        } catch (IOException e) {
+            Main.LOGGER.error("Could not clean up orphaned session directories: ", e);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${output-retention.sweep-ms:60000}")
+    public void sweep() {
+        List<SessionDirectory> directories = listDirectories();
+        long now = System.currentTimeMillis();
+        long ttlLimit = now - ttlSeconds * 1000;
+        long graceLimit = now - renderGraceSeconds * 1000;
+
+        long bytes = 0;
+        long count = 0;
+        List<SessionDirectory> candidates = new ArrayList<>();
+        for (SessionDirectory directory : directories) {
+            boolean deletable = !pins.containsKey(directory.uuid()) && (directory.ended() || directory.lastModified() < graceLimit);
+            if (deletable && directory.lastUsed() < ttlLimit && delete(directory.uuid())) {
+                expired.increment();
+                continue;
+            }
+            bytes += directory.sizeBytes();
+            count++;
+            if (deletable) {
+                candidates.add(directory);
+            }
+        }
+
+        candidates.sort(Comparator.comparingLong(SessionDirectory::lastUsed));
+        for (SessionDirectory directory : candidates) {
+            if (bytes <= maxBytes) {
+                break;
+            }
+            if (delete(directory.uuid())) {
+                bytes -= directory.sizeBytes();
+                count--;
+                evicted.increment();
+            }
+        }
+
+        lastAccess.keySet().removeIf(uuid -> !Files.isDirectory(Paths.get(outputPath, uuid)));
+        totalBytes.set(bytes);
+        directoryCount.set(count);
+    }
+
+    private List<SessionDirectory> listDirectories() {
+        Path root = Paths.get(outputPath);
+        if (!Files.isDirectory(root)) {
+            return List.of();
+        }
+
+        List<SessionDirectory> directories = new ArrayList<>();
+        try (Stream<Path> entries = Files.list(root)) {
+            for (Path entry : entries.filter(Files::isDirectory).toList()) {
+                SessionDirectory directory = inspect(entry);
+                if (directory != null) {
+                    directories.add(directory);
+                }
+            }
+        } catch (IOException e) {
+            Main.LOGGER.error("Could not list session directories: ", e);
+        }
+        return directories;
+    }
+
+    private SessionDirectory inspect(Path path) {
+        String uuid = path.getFileName().toString();
+        long size = 0;
+        long lastModified = 0;
+        try (Stream<Path> files = Files.walk(path)) {
+            for (Path file : files.toList()) {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                lastModified = Math.max(lastModified, attributes.lastModifiedTime().toMillis());
+                if (attributes.isRegularFile()) {
+                    size += attributes.size();
+                }
+            }
+        } catch (IOException e) {
+            // directory is being deleted or still written, the next sweep looks at it again
+            return null;
+        }
+
+        long lastUsed = Math.max(lastModified, lastAccess.getOrDefault(uuid, 0L));
+        return new SessionDirectory(uuid, size, lastUsed, lastModified, isEnded(path));
+    }
+
+    private static boolean isEnded(Path path) {
+        Path playlist = path.resolve("video").resolve("playlist.m3u8");
+        if (!Files.exists(playlist)) {
+            return false;
+        }
+        try (Stream<String> lines = Files.lines(playlist)) {
+            return lines.anyMatch(line -> line.startsWith("#EXT-X-ENDLIST"));
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+}
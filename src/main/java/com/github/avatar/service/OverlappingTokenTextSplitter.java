@@ -0,0 +1,79 @@
+package com.github.avatar.service;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+import com.knuddels.jtokkit.api.IntArrayList;
+import org.springframework.ai.transformer.splitter.TextSplitter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits text into chunks of at most {@code chunkSize} tokens, where each chunk repeats the last
+ * {@code overlap} tokens of the previous one. Like TokenTextSplitter, a chunk is cut at the last
+ * sentence end if that keeps it above {@code minChunkSizeChars}. The metadata of the split document
+ * is copied to every chunk by {@link TextSplitter}.
+ */
+public class OverlappingTokenTextSplitter extends TextSplitter {
+    private static final int MIN_CHUNK_LENGTH_TO_EMBED = 5;
+
+    private final Encoding encoding = Encodings.newLazyEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+    private final int chunkSize;
+    private final int overlap;
+    private final int minChunkSizeChars;
+
+    public OverlappingTokenTextSplitter(int chunkSize, int overlap, int minChunkSizeChars) {
+        if (overlap < 0 || overlap >= chunkSize) {
+            throw new IllegalArgumentException("Overlap must be at least 0 and smaller than the chunk size.");
+        }
+        this.chunkSize = chunkSize;
+        this.overlap = overlap;
+        this.minChunkSizeChars = minChunkSizeChars;
+    }
+
+    @Override
+    protected List<String> splitText(String text) {
+        IntArrayList tokens = encoding.encode(text);
+        List<String> chunks = new ArrayList<>();
+
+        int start = 0;
+        while (start < tokens.size()) {
+            int end = Math.min(start + chunkSize, tokens.size());
+            String chunk = decode(tokens, start, end);
+            int consumed = end - start;
+
+            if (end < tokens.size()) {
+                int sentenceEnd = lastSentenceEnd(chunk);
+                if (sentenceEnd >= minChunkSizeChars) {
+                    chunk = chunk.substring(0, sentenceEnd + 1);
+                    consumed = Math.min(encoding.countTokens(chunk), consumed);
+                }
+            }
+
+            String trimmed = chunk.trim();
+            if (trimmed.length() > MIN_CHUNK_LENGTH_TO_EMBED) {
+                chunks.add(trimmed);
+            }
+            if (end == tokens.size()) {
+                break;
+            }
+            // Skip the overlap if a chunk was cut so short that repeating it would not move forward
+            start += consumed > overlap ? consumed - overlap : consumed;
+        }
+        return chunks;
+    }
+
+    private String decode(IntArrayList tokens, int start, int end) {
+        IntArrayList window = new IntArrayList(end - start);
+        for (int i = start; i < end; i++) {
+            window.add(tokens.get(i));
+        }
+        return encoding.decode(window);
+    }
+
+    private static int lastSentenceEnd(String chunk) {
+        return Math.max(Math.max(chunk.lastIndexOf('.'), chunk.lastIndexOf('?')),
+                Math.max(chunk.lastIndexOf('!'), chunk.lastIndexOf('\n')));
+    }
+}
@@ -0,0 +1,29 @@
+package com.github.avatar.service;
+
+/**
+ * Thrown when an upstream GPU service has no free slot and its wait queue is full, or a queued request waited too long.
+ */
+public class OverloadedException extends RuntimeException {
+    private final String upstream;
+    private final int queued;
+    private final long retryAfterSeconds;
+
+    public OverloadedException(String upstream, int queued, long retryAfterSeconds) {
+        super("Upstream " + upstream + " is overloaded");
+        this.upstream = upstream;
+        this.queued = queued;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public String getUpstream() {
+        return upstream;
+    }
+
+    public int getQueued() {
+        return queued;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
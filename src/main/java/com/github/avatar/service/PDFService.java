@@ -1,67 +1,292 @@
 package com.github.avatar.service;
 
 import com.github.avatar.Main;
+import com.github.avatar.dto.IngestionJobDTO;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripper;
 import org.springframework.ai.document.Document;
-import org.springframework.ai.reader.ExtractedTextFormatter;
-import org.springframework.ai.reader.pdf.PagePdfDocumentReader;
-import org.springframework.ai.reader.pdf.config.PdfDocumentReaderConfig;
 import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.UrlResource;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Service
-public class PDFService {
+public class PDFService implements DisposableBean {
     private final VectorStore vectorStore;
+    private final ResponseCacheService responseCacheService;
+    private final ReferenceIndexService referenceIndexService;
+    private final ExecutorService parseExecutor;
+    private final ExecutorService embeddingExecutor;
+    private final OverlappingTokenTextSplitter textSplitter;
+    private final Map<String, IngestionJob> jobs = new ConcurrentHashMap<>();
 
     @Value("${references_path}")
     private String referencesPath;
 
-    public PDFService(final VectorStore vectorStore) {
+    @Value("${ingestion.pages-per-task:8}")
+    private int pagesPerTask;
+
+    @Value("${ingestion.embedding-batch-size:32}")
+    private int embeddingBatchSize;
+
+    @Value("${ingestion.job-ttl-seconds:3600}")
+    private long jobTtlSeconds;
+
+    public PDFService(final VectorStore vectorStore, final ResponseCacheService responseCacheService, final ReferenceIndexService referenceIndexService,
+                      @Value("${ingestion.parse-parallelism:4}") int parseParallelism,
+                      @Value("${ingestion.embedding-concurrency:4}") int embeddingConcurrency,
+                      @Value("${ingestion.chunk-size-tokens:400}") int chunkSizeTokens,
+                      @Value("${ingestion.chunk-overlap-tokens:50}") int chunkOverlapTokens,
+                      @Value("${ingestion.min-chunk-size-chars:200}") int minChunkSizeChars) {
         this.vectorStore = vectorStore;
+        this.responseCacheService = responseCacheService;
+        this.referenceIndexService = referenceIndexService;
+        this.parseExecutor = Executors.newFixedThreadPool(parseParallelism, namedThreads("pdf-parse-"));
+        this.embeddingExecutor = Executors.newFixedThreadPool(embeddingConcurrency, namedThreads("pdf-embed-"));
+        this.textSplitter = new OverlappingTokenTextSplitter(chunkSizeTokens, chunkOverlapTokens, minChunkSizeChars);
     }
 
-    private void savePdfFile(Resource resource, String id) throws IOException {
-        byte[] bytes = resource.getContentAsByteArray();
-        File folder = new File(referencesPath + id);
-        folder.mkdirs();
-        Path path = Paths.get(referencesPath + id, resource.getFilename());
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> new Thread(runnable, prefix + counter.getAndIncrement());
+    }
+
+    private static class IngestionJob {
+        private final String jobId = UUID.randomUUID().toString();
+        private final String room;
+        private final String fileName;
+        private final String ownerId;
+        private final AtomicInteger parsedPages = new AtomicInteger();
+        private final AtomicInteger totalDocuments = new AtomicInteger();
+        private final AtomicInteger storedDocuments = new AtomicInteger();
+        private final AtomicInteger skippedDocuments = new AtomicInteger();
+        private final Set<String> indexedIds = ConcurrentHashMap.newKeySet();
+        private final Set<String> currentIds = ConcurrentHashMap.newKeySet();
+        private String fileHash;
+        private Map<String, String> embeddedHashes = Map.of();
+        private volatile String state = "QUEUED";
+        private volatile int totalPages;
+        private volatile String error;
+        private volatile long finishedAt;
 
+        IngestionJob(String room, String fileName, String ownerId) {
+            this.room = room;
+            this.fileName = fileName;
+            this.ownerId = ownerId;
+        }
+
+        void finish(String state, String error) {
+            this.state = state;
+            this.error = error;
+            this.finishedAt = System.currentTimeMillis();
+        }
+
+        IngestionJobDTO toDTO() {
+            return new IngestionJobDTO(jobId, fileName, state, totalPages, parsedPages.get(), totalDocuments.get(), storedDocuments.get(), skippedDocuments.get(), error);
+        }
+    }
+
+    private Path savePdfFile(Resource resource, String id, IngestionJob job) throws IOException {
+        Path folder = Paths.get(referencesPath + id);
+        Files.createDirectories(folder);
+        Path path = folder.resolve(resource.getFilename());
+
+        MessageDigest digest = sha256();
+        try (InputStream inputStream = new DigestInputStream(resource.getInputStream(), digest)) {
+            Files.copy(inputStream, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        job.fileHash = HexFormat.of().formatHex(digest.digest());
+        return path;
+    }
+
+    /**
+     * Splits the pages into ranges that are parsed in parallel. Every parsed range is embedded and written to the
+     * vector store in batches right away, so embedding overlaps with parsing of the remaining pages.
+     */
+    private void savePdfVectorDb(Path file, IngestionJob job) {
         try {
-            Files.write(path, bytes);
+            List<ReferenceIndexService.IndexedChunk> indexedChunks = referenceIndexService.findChunks(job.room, job.fileName);
+            if (!indexedChunks.isEmpty() && indexedChunks.stream().allMatch(chunk -> job.fileHash.equals(chunk.fileHash()))) {
+                job.skippedDocuments.set(indexedChunks.size());
+                job.finish("DONE", null);
+                return;
+            }
+            job.embeddedHashes = referenceIndexService.findEmbeddedHashes(job.room);
+            indexedChunks.forEach(chunk -> job.indexedIds.add(chunk.id()));
+
+            try (PDDocument document = Loader.loadPDF(file.toFile())) {
+                job.totalPages = document.getNumberOfPages();
+            }
+            job.state = "RUNNING";
+
+            List<CompletableFuture<Void>> tasks = new ArrayList<>();
+            for (int start = 1; start <= job.totalPages; start += pagesPerTask) {
+                int end = Math.min(start + pagesPerTask - 1, job.totalPages);
+                int firstPage = start;
+                tasks.add(CompletableFuture.supplyAsync(() -> readPages(file, firstPage, end, job), parseExecutor)
+                        .thenCompose(docs -> storeDocuments(docs, job)));
+            }
+
+            CompletableFuture.allOf(tasks.toArray(CompletableFuture[]::new)).whenComplete((ignored, e) -> {
+                if (e != null) {
+                    Main.LOGGER.error("Error while indexing uploaded pdf: ", e);
+                    job.finish("FAILED", "Indexing failed.");
+                } else {
+                    removeStaleChunks(indexedChunks, job);
+                }
+                responseCacheService.invalidate(job.room);
+            });
         } catch (IOException e) {
-            Main.LOGGER.error("Error while saving uploaded pdf: ", e);
+            Main.LOGGER.error("Error while reading uploaded pdf: ", e);
+            job.finish("FAILED", "The file is not a readable pdf.");
+        } catch (RuntimeException e) {
+            Main.LOGGER.error("Error while indexing uploaded pdf: ", e);
+            job.finish("FAILED", "Indexing failed.");
         }
     }
 
-    private void savePdfVectorDb(Resource resource, String id) {
-        PagePdfDocumentReader pdfReader = new PagePdfDocumentReader(resource,
-                PdfDocumentReaderConfig.builder()
-                        .withPageTopMargin(0)
-                        .withPageExtractedTextFormatter(ExtractedTextFormatter.builder()
-                                .withNumberOfTopTextLinesToDelete(0)
-                                .build())
-                        .withPagesPerDocument(1)
-                        .build());
+    // PDDocument is not thread-safe, so every task opens its own instance
+    private List<Document> readPages(Path file, int firstPage, int lastPage, IngestionJob job) {
+        try (PDDocument document = Loader.loadPDF(file.toFile())) {
+            PDFTextStripper stripper = new PDFTextStripper();
+            stripper.setSortByPosition(true);
 
-        List<Document> docs = pdfReader.read();
+            List<Document> docs = new ArrayList<>();
+            for (int page = firstPage; page <= lastPage; page++) {
+                stripper.setStartPage(page);
+                stripper.setEndPage(page);
+                String text = stripper.getText(document);
+                if (!text.isBlank()) {
+                    Map<String, Object> metadata = new HashMap<>();
+                    metadata.put("file_name", job.fileName);
+                    metadata.put("page_number", page);
+                    metadata.put("room", job.room);
+                    docs.add(new Document(text, metadata));
+                }
+                job.parsedPages.incrementAndGet();
+            }
 
-        docs.forEach(document -> document.getMetadata().put("room", id));
+            // Chunks inherit file_name, page_number and room from their page
+            List<Document> chunks = textSplitter.apply(docs);
+            job.totalDocuments.addAndGet(chunks.size());
+            return chunks;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Only embeds chunks whose content is new to the room. Chunks that are already indexed for this file are kept,
+     * chunks whose content is indexed under another file reuse that embedding.
+     */
+    private CompletableFuture<Void> storeDocuments(List<Document> chunks, IngestionJob job) {
+        List<Document> docs = new ArrayList<>();
+        List<ReferenceIndexService.EmbeddingCopy> copies = new ArrayList<>();
+        for (Document chunk : chunks) {
+            String contentHash = HexFormat.of().formatHex(sha256().digest(chunk.getText().getBytes(StandardCharsets.UTF_8)));
+            Map<String, Object> metadata = new HashMap<>(chunk.getMetadata());
+            metadata.put(ReferenceIndexService.CONTENT_HASH, contentHash);
+            metadata.put(ReferenceIndexService.FILE_HASH, job.fileHash);
+            // The id is derived from the chunk, so the same chunk of the same file always maps to the same row
+            String id = UUID.nameUUIDFromBytes((job.room + "/" + job.fileName + "#" + metadata.get("page_number") + "#" + contentHash).getBytes(StandardCharsets.UTF_8)).toString();
+            job.currentIds.add(id);
+
+            String sourceId = job.embeddedHashes.get(contentHash);
+            if (job.indexedIds.contains(id)) {
+                job.skippedDocuments.incrementAndGet();
+            } else if (sourceId != null) {
+                copies.add(new ReferenceIndexService.EmbeddingCopy(id, metadata, sourceId));
+            } else {
+                docs.add(new Document(id, chunk.getText(), metadata));
+            }
+        }
+
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        if (!copies.isEmpty()) {
+            batches.add(CompletableFuture.runAsync(() -> {
+                referenceIndexService.copyEmbeddings(copies);
+                job.storedDocuments.addAndGet(copies.size());
+            }, embeddingExecutor));
+        }
+        for (int i = 0; i < docs.size(); i += embeddingBatchSize) {
+            List<Document> batch = docs.subList(i, Math.min(i + embeddingBatchSize, docs.size()));
+            batches.add(CompletableFuture.runAsync(() -> {
+                vectorStore.add(batch);
+                job.storedDocuments.addAndGet(batch.size());
+            }, embeddingExecutor));
+        }
+        return CompletableFuture.allOf(batches.toArray(CompletableFuture[]::new));
+    }
+
+    // Rows of the previous version of the file that no longer match a chunk, and kept rows that still carry its hash
+    private void removeStaleChunks(List<ReferenceIndexService.IndexedChunk> indexedChunks, IngestionJob job) {
+        try {
+            List<String> staleIds = indexedChunks.stream()
+                    .map(ReferenceIndexService.IndexedChunk::id)
+                    .filter(id -> !job.currentIds.contains(id))
+                    .toList();
+            if (!staleIds.isEmpty()) {
+                vectorStore.delete(staleIds);
+            }
+            referenceIndexService.updateFileHash(indexedChunks.stream()
+                    .map(ReferenceIndexService.IndexedChunk::id)
+                    .filter(job.currentIds::contains)
+                    .toList(), job.fileHash);
+            job.finish("DONE", null);
+        } catch (Exception e) {
+            Main.LOGGER.error("Error while removing outdated chunks: ", e);
+            job.finish("FAILED", "Outdated content could not be removed.");
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Stores the file and starts indexing it in the background. Returns the job that reports the progress.
+     */
+    public IngestionJobDTO savePdf(Resource resource, String id, String ownerId) throws IOException {
+        IngestionJob job = new IngestionJob(id, resource.getFilename(), ownerId);
+        Path file = savePdfFile(resource, id, job);
+        jobs.put(job.jobId, job);
+        parseExecutor.execute(() -> savePdfVectorDb(file, job));
+        return job.toDTO();
+    }
 
-        vectorStore.add(docs);
+    public Optional<IngestionJobDTO> getJob(String jobId, String ownerId) {
+        return Optional.ofNullable(jobs.get(jobId))
+                .filter(job -> job.ownerId.equals(ownerId))
+                .map(IngestionJob::toDTO);
     }
 
-    public void savePdf(Resource resource, String id) throws IOException {
-        savePdfVectorDb(resource, id);
-        savePdfFile(resource, id);
+    @Scheduled(fixedDelayString = "${ingestion.job-sweep-ms:60000}")
+    public void evictFinishedJobs() {
+        long now = System.currentTimeMillis();
+        jobs.values().removeIf(job -> job.finishedAt > 0 && now - job.finishedAt > jobTtlSeconds * 1000);
     }
 
     public Resource getPdf(String path) throws IOException {
@@ -72,4 +297,10 @@ public class PDFService {
         }
         return new UrlResource(filePath.toUri());
     }
+
+    @Override
+    public void destroy() {
+        parseExecutor.shutdownNow();
+        embeddingExecutor.shutdownNow();
+    }
 }
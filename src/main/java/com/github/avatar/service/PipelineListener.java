@@ -0,0 +1,44 @@
+package com.github.avatar.service;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Receives intermediate results of a pipeline run as soon as they are available.
+ * Callbacks may come from different threads.
+ */
+public interface PipelineListener {
+    PipelineListener NONE = new PipelineListener() {};
+
+    default void onQueued(String upstream, int position) {}
+
+    default void onTranscription(String text) {}
+
+    default void onToken(String text) {}
+
+    default void onStreamingUuid(String streamingUuid) {}
+
+    /**
+     * A stage of the pipeline has finished after the given time on the named upstream. Failed stages, e.g. timeouts,
+     * are reported with success false.
+     */
+    default void onStage(String stage, String upstream, Duration duration, boolean success) {}
+
+    static <T> T timed(PipelineListener listener, String stage, String upstream, Supplier<T> action) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            T result = action.get();
+            success = true;
+            return result;
+        } finally {
+            listener.onStage(stage, upstream, Duration.ofNanos(System.nanoTime() - start), success);
+        }
+    }
+
+    static <T> CompletableFuture<T> timedAsync(PipelineListener listener, String stage, String upstream, Supplier<CompletableFuture<T>> action) {
+        long start = System.nanoTime();
+        return action.get().whenComplete((result, error) -> listener.onStage(stage, upstream, Duration.ofNanos(System.nanoTime() - start), error == null));
+    }
+}
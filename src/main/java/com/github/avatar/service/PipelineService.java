@@ -1,7 +1,12 @@
 package com.github.avatar.service;
 
+import com.github.avatar.Main;
 import com.github.avatar.dto.AvatarResponse;
+import com.github.avatar.dto.IngestionJobDTO;
 import com.github.avatar.dto.LLMResponseDTO;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
@@ -12,46 +17,351 @@ import org.springframework.security.oauth2.jwt.Jwt;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 @Service
 public class PipelineService {
+    @Value("${pipeline.streaming.enabled:false}")
+    private boolean streamingEnabled;
+
+    @Value("${admission.render-hold-timeout-ms:300000}")
+    private long renderHoldTimeoutMs;
+
     private final LLMService llmService;
     private final STTService sttService;
     private final TTSService ttsService;
     private final PDFService pdfService;
     private final KeycloakService keycloakService;
+    private final RenderCacheService renderCacheService;
+    private final AdmissionService admissionService;
+    private final PlaylistService playlistService;
+    private final MeterRegistry meterRegistry;
+    private final Executor pipelineExecutor;
 
-    public PipelineService(LLMService llmService, STTService sttService, TTSService ttsService, PDFService pdfService, KeycloakService keycloakService) {
+    public PipelineService(LLMService llmService, STTService sttService, TTSService ttsService, PDFService pdfService, KeycloakService keycloakService, RenderCacheService renderCacheService, AdmissionService admissionService, PlaylistService playlistService, MeterRegistry meterRegistry, @Qualifier("applicationTaskExecutor") Executor pipelineExecutor) {
         this.llmService = llmService;
         this.sttService = sttService;
         this.ttsService = ttsService;
         this.pdfService = pdfService;
         this.keycloakService = keycloakService;
+        this.renderCacheService = renderCacheService;
+        this.admissionService = admissionService;
+        this.playlistService = playlistService;
+        this.meterRegistry = meterRegistry;
+        this.pipelineExecutor = pipelineExecutor;
+    }
+
+    /**
+     * Runs the LLM call while the room owner and the user language are fetched from Keycloak,
+     * then starts speech synthesis once all three are available and a render slot is free. An answer that was already
+     * rendered for the same avatar and language is served from the render cache without a slot.
+     * Fails with an OverloadedException if the answer has to be rendered and the GPU services cannot take it.
+     */
+    public CompletableFuture<AvatarResponse> processText(String input, String roomPath, Jwt jwt) {
+        return processText(input, roomPath, jwt, PipelineListener.NONE);
+    }
+
+    /**
+     * Like {@link #processText(String, String, Jwt)}, reporting the time of every stage to the listener.
+     */
+    public CompletableFuture<AvatarResponse> processText(String input, String roomPath, Jwt jwt, PipelineListener listener) {
+        return generate(input, roomPath, jwt, metered(listener, roomPath, jwt));
+    }
+
+    private CompletableFuture<AvatarResponse> generate(String input, String roomPath, Jwt jwt, PipelineListener listener) {
+        if (streamingEnabled) {
+            return processTextStreaming(input, roomPath, jwt, listener, true);
+        }
+
+        RenderSlot renderSlot = new RenderSlot(roomPath, listener);
+        CompletableFuture<LLMResponseDTO> llmResponse = CompletableFuture.supplyAsync(() -> llmService.generateResponse(input, roomPath, jwt.getSubject(), listener), pipelineExecutor);
+        CompletableFuture<String> ownerId = lookupOwner(roomPath, listener);
+        CompletableFuture<String> language = lookupLanguage(jwt, listener);
+
+        CompletableFuture<String> streamingUuid = CompletableFuture.allOf(llmResponse, ownerId, language)
+                .thenComposeAsync(ignored -> synthesize(llmResponse.join().response(), ownerId.join(), language.join(), renderSlot, listener), pipelineExecutor);
+        renderSlot.holdUntilRendered(streamingUuid);
+        return streamingUuid.thenApply(streamingUUid -> new AvatarResponse(llmResponse.join(), streamingUUid, Optional.empty()));
+    }
+
+    /**
+     * Like {@link #processText}, but streams the LLM answer and reports tokens and the streaming uuid to the listener
+     * while the pipeline is still running.
+     */
+    public CompletableFuture<AvatarResponse> streamText(String input, String roomPath, Jwt jwt, PipelineListener listener) {
+        return processTextStreaming(input, roomPath, jwt, metered(listener, roomPath, jwt), streamingEnabled);
+    }
+
+    public CompletableFuture<AvatarResponse> streamAudio(ByteArrayResource input, String roomId, Jwt jwt, PipelineListener listener) {
+        PipelineListener meteredListener = metered(listener, roomId, jwt);
+        return transcribe(input, roomId, meteredListener)
+                .thenCompose(requestText -> {
+                    meteredListener.onTranscription(requestText);
+                    return processTextStreaming(requestText, roomId, jwt, meteredListener, streamingEnabled)
+                            .thenApply(response -> new AvatarResponse(response.responseText(), response.streamingUUID(), Optional.of(requestText)));
+                });
+    }
+
+    /**
+     * Streams the LLM answer. With sentence speech every finished sentence is sent to xtts right away, so speech
+     * starts after the first sentence instead of after the whole answer. Falls back to {@link #synthesize} if
+     * nothing was streamed, e.g. for a cached answer.
+     */
+    private CompletableFuture<AvatarResponse> processTextStreaming(String input, String roomPath, Jwt jwt, PipelineListener listener, boolean sentenceSpeech) {
+        RenderSlot renderSlot = new RenderSlot(roomPath, listener);
+        CompletableFuture<String> ownerId = lookupOwner(roomPath, listener);
+        CompletableFuture<String> language = lookupLanguage(jwt, listener);
+        SpeechStream speechStream = new SpeechStream(ownerId, language, renderSlot, listener);
+        Consumer<String> sentenceConsumer = sentenceSpeech ? speechStream::append : sentence -> {};
+        CompletableFuture<LLMResponseDTO> llmResponse = CompletableFuture.supplyAsync(() -> llmService.streamResponse(input, roomPath, jwt.getSubject(), listener, sentenceConsumer), pipelineExecutor)
+                .thenCompose(response -> response);
+        llmResponse.whenComplete((response, error) -> {
+            // Close the xtts session even if generation broke off, so the stream still gets an end
+            if (error != null && speechStream.isStarted()) {
+                speechStream.finish();
+            }
+        });
+
+        CompletableFuture<String> streamingUuid = CompletableFuture.allOf(llmResponse, ownerId, language)
+                .thenComposeAsync(ignored -> {
+                    if (!speechStream.isStarted()) {
+                        return synthesize(llmResponse.join().response(), ownerId.join(), language.join(), renderSlot, listener)
+                                .thenApply(streamingUUid -> {
+                                    if (streamingUUid != null) {
+                                        listener.onStreamingUuid(streamingUUid);
+                                    }
+                                    return streamingUUid;
+                                });
+                    }
+                    // Fails with the OverloadedException if the sentences could not get a render slot
+                    return speechStream.finish().thenCombine(renderSlot.acquire(), (streamingUUid, permit) -> {
+                        if (speechStream.isComplete()) {
+                            renderSlot.cacheAs(renderCacheService.key(ownerId.join(), language.join(), llmResponse.join().response()), ownerId.join());
+                        }
+                        return streamingUUid;
+                    });
+                }, pipelineExecutor);
+        renderSlot.holdUntilRendered(streamingUuid);
+        return streamingUuid.thenApply(streamingUUid -> new AvatarResponse(llmResponse.join(), streamingUUid, Optional.empty()));
+    }
+
+    /**
+     * A slot on xtts and wav2lip for one answer. It is only acquired when speech synthesis is about to start, so no
+     * GPU slot is blocked while the LLM is still generating and an answer from the render cache is never rejected. xtts and wav2lip keep working after their requests
+     * returned, so the slot is held until the playlist has ended. A render that ended is added to the render cache.
+     */
+    private class RenderSlot {
+        private final String roomPath;
+        private final PipelineListener listener;
+        private CompletableFuture<AdmissionService.Permit> permit;
+        private volatile String renderKey;
+        private volatile String renderOwnerId;
+
+        RenderSlot(String roomPath, PipelineListener listener) {
+            this.roomPath = roomPath;
+            this.listener = listener;
+        }
+
+        synchronized CompletableFuture<AdmissionService.Permit> acquire() {
+            if (permit == null) {
+                try {
+                    permit = PipelineListener.timedAsync(listener, "queue", AdmissionService.XTTS, () -> admissionService.acquireAll(roomPath, position -> listener.onQueued(AdmissionService.XTTS, position), AdmissionService.XTTS, AdmissionService.WAV2LIP));
+                } catch (OverloadedException e) {
+                    permit = CompletableFuture.failedFuture(e);
+                }
+            }
+            return permit;
+        }
+
+        synchronized boolean isFailed() {
+            return permit != null && permit.isCompletedExceptionally();
+        }
+
+        void cacheAs(String renderKey, String ownerId) {
+            this.renderOwnerId = ownerId;
+            this.renderKey = renderKey;
+        }
+
+        void holdUntilRendered(CompletableFuture<String> streamingUuid) {
+            streamingUuid.whenComplete((uuid, error) -> {
+                CompletableFuture<AdmissionService.Permit> acquired;
+                synchronized (this) {
+                    acquired = permit;
+                }
+                if (acquired == null) {
+                    return;
+                }
+                acquired.thenAccept(slot -> {
+                    if (error != null || uuid == null) {
+                        slot.release();
+                    } else {
+                        playlistService.awaitEnd(uuid, Duration.ofMillis(renderHoldTimeoutMs)).whenComplete((playlist, e) -> {
+                            slot.release();
+                            if (e == null && renderKey != null) {
+                                renderCacheService.store(renderKey, renderOwnerId, uuid);
+                            }
+                        });
+                    }
+                });
+            });
+        }
     }
 
-    public AvatarResponse processText(String input, String roomPath, Jwt jwt) throws InterruptedException {
-        LLMResponseDTO llmResponse = llmService.generateResponse(input, roomPath);
-        String ownerId = keycloakService.getGroupOwnerIdByGroupPath(roomPath);
-        String language = keycloakService.getLanguage(jwt);
-        String streamingUUid = ttsService.processText(llmResponse.response(), ownerId, language);
-        return new AvatarResponse(llmResponse, streamingUUid, Optional.empty());
+    private CompletableFuture<String> transcribe(ByteArrayResource input, String roomId, PipelineListener listener) {
+        return PipelineListener.timedAsync(listener, "queue", AdmissionService.WHISPER, () -> admissionService.acquire(AdmissionService.WHISPER, roomId, position -> listener.onQueued(AdmissionService.WHISPER, position)))
+                .thenApplyAsync(permit -> {
+                    try {
+                        return PipelineListener.timed(listener, "transcription", AdmissionService.WHISPER, () -> sttService.processAudio(input));
+                    } finally {
+                        permit.release();
+                    }
+                }, pipelineExecutor);
     }
 
-    public AvatarResponse processAudio(ByteArrayResource input, String roomId, Jwt jwt) throws InterruptedException {
-        String requestText = sttService.processAudio(input);
-        AvatarResponse response = processText(requestText, roomId, jwt);
-        return new AvatarResponse(response.responseText(), response.streamingUUID(), Optional.of(requestText));
+    private CompletableFuture<String> lookupOwner(String roomPath, PipelineListener listener) {
+        return PipelineListener.timedAsync(listener, "owner-lookup", "keycloak", () -> keycloakService.getGroupOwnerIdByGroupPathAsync(roomPath).toFuture());
     }
 
-    public ResponseEntity<Void> savePdf(Jwt jwt, Resource file, String id) throws IOException {
+    private CompletableFuture<String> lookupLanguage(Jwt jwt, PipelineListener listener) {
+        return PipelineListener.timedAsync(listener, "language-lookup", "keycloak", () -> keycloakService.getLanguageAsync(jwt).toFuture());
+    }
+
+    // The room path comes from the request body, only rooms in the token's groups claim are used as a tag value, so
+    // requests for made-up rooms cannot create new timer series
+    private PipelineListener metered(PipelineListener listener, String roomPath, Jwt jwt) {
+        List<String> groups = jwt.getClaimAsStringList("groups");
+        String room = groups != null && groups.contains(roomPath) ? roomPath : StageMetricsListener.OTHER_ROOM;
+        return new StageMetricsListener(listener, room, meterRegistry);
+    }
+
+    private CompletableFuture<String> synthesize(String text, String ownerId, String language, RenderSlot renderSlot, PipelineListener listener) {
+        String renderKey = renderCacheService.key(ownerId, language, text);
+        Optional<String> cachedRender = renderCacheService.find(renderKey);
+        if (cachedRender.isPresent()) {
+            return CompletableFuture.completedFuture(cachedRender.get());
+        }
+
+        renderSlot.cacheAs(renderKey, ownerId);
+        return renderSlot.acquire()
+                .thenComposeAsync(permit -> ttsService.processText(text, ownerId, language, listener), pipelineExecutor);
+    }
+
+    /**
+     * Sends sentence batches of one answer to xtts in order. The first batch starts the session and wav2lip,
+     * later batches are appended to it. Sentences arrive on the LLM stream thread and are handed off to the executor.
+     */
+    private class SpeechStream {
+        private final CompletableFuture<String> ownerId;
+        private final CompletableFuture<String> language;
+        private final RenderSlot renderSlot;
+        private final PipelineListener listener;
+        private CompletableFuture<Void> tail;
+        private volatile boolean started;
+        private volatile boolean failed;
+        private volatile boolean incomplete;
+        private volatile String uuid;
+        private volatile CompletableFuture<String> lipSync = CompletableFuture.completedFuture(null);
+
+        SpeechStream(CompletableFuture<String> ownerId, CompletableFuture<String> language, RenderSlot renderSlot, PipelineListener listener) {
+            this.ownerId = ownerId;
+            this.language = language;
+            this.renderSlot = renderSlot;
+            this.listener = listener;
+            this.tail = CompletableFuture.allOf(ownerId, language);
+        }
+
+        synchronized void append(String sentence) {
+            if (!started) {
+                started = true;
+                tail = CompletableFuture.allOf(tail, renderSlot.acquire());
+            }
+            tail = tail.handleAsync((ignored, error) -> {
+                send(sentence, false);
+                return null;
+            }, pipelineExecutor);
+        }
+
+        boolean isStarted() {
+            return started;
+        }
+
+        /**
+         * Whether every sentence reached xtts, only then the render may be cached.
+         */
+        boolean isComplete() {
+            return !failed && !incomplete;
+        }
+
+        /**
+         * Ends the session once all queued sentences were sent and completes with the streaming uuid, or null.
+         */
+        synchronized CompletableFuture<String> finish() {
+            return tail.handleAsync((ignored, error) -> {
+                if (uuid != null) {
+                    send("", true);
+                }
+                return null;
+            }, pipelineExecutor).thenCompose(ignored -> lipSync);
+        }
+
+        private void send(String text, boolean finalBatch) {
+            if (failed || renderSlot.isFailed()) {
+                incomplete = true;
+                return;
+            }
+            try {
+                String owner = ownerId.join();
+                if (uuid == null) {
+                    uuid = PipelineListener.timed(listener, "tts-request", AdmissionService.XTTS, () -> ttsService.requestSpeech(text, owner, language.join(), null, finalBatch));
+                    if (uuid == null) {
+                        failed = true;
+                        return;
+                    }
+                    lipSync = ttsService.awaitLipSync(uuid, owner, listener);
+                    lipSync.thenAccept(streamingUuid -> {
+                        if (streamingUuid != null) {
+                            listener.onStreamingUuid(streamingUuid);
+                        }
+                    });
+                } else {
+                    ttsService.requestSpeech(text, owner, language.join(), uuid, finalBatch);
+                }
+            } catch (Exception e) {
+                Main.LOGGER.error("Could not send sentence to tts: ", e);
+                failed = uuid == null;
+                incomplete = true;
+            }
+        }
+    }
+
+    public CompletableFuture<AvatarResponse> processAudio(ByteArrayResource input, String roomId, Jwt jwt) {
+        return processAudio(input, roomId, jwt, PipelineListener.NONE);
+    }
+
+    public CompletableFuture<AvatarResponse> processAudio(ByteArrayResource input, String roomId, Jwt jwt, PipelineListener listener) {
+        PipelineListener meteredListener = metered(listener, roomId, jwt);
+        return transcribe(input, roomId, meteredListener)
+                .thenCompose(requestText -> generate(requestText, roomId, jwt, meteredListener)
+                        .thenApply(response -> new AvatarResponse(response.responseText(), response.streamingUUID(), Optional.of(requestText))));
+    }
+
+    public ResponseEntity<IngestionJobDTO> savePdf(Jwt jwt, Resource file, String id) throws IOException {
         String ownerId = keycloakService.getGroupOwnerIdByGroupPath(id);
-        if (ownerId.equals(jwt.getSubject())) {
-            pdfService.savePdf(file, id);
-        } else {
+        if (!ownerId.equals(jwt.getSubject())) {
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
         }
-        return ResponseEntity.ok().build();
+        return ResponseEntity.accepted().body(pdfService.savePdf(file, id, ownerId));
+    }
+
+    public ResponseEntity<IngestionJobDTO> getIngestionJob(Jwt jwt, String jobId) {
+        return pdfService.getJob(jobId, jwt.getSubject())
+                .map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.status(HttpStatus.NOT_FOUND).build());
     }
 
     public ResponseEntity<Resource> getPdf(Jwt jwt, String path) throws IOException {
@@ -0,0 +1,89 @@
+package com.github.avatar.service;
+
+import com.github.avatar.dto.HlsPlaylist;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+@Service
+public class PlaylistService {
+    @Value("${output_path}")
+    private String outputPath;
+
+    @Value("${hls.blocking-reload-timeout-ms:10000}")
+    private long blockingReloadTimeoutMs;
+
+    private final FileWatchService fileWatchService;
+
+    public PlaylistService(FileWatchService fileWatchService) {
+        this.fileWatchService = fileWatchService;
+    }
+
+    public Path getPlaylistPath(String uuid) {
+        return Paths.get(outputPath, uuid, "video", "playlist.m3u8");
+    }
+
+    public HlsPlaylist getPlaylist(String uuid) throws IOException {
+        Path path = getPlaylistPath(uuid);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        return HlsPlaylist.read(path);
+    }
+
+    /**
+     * Completes once the playlist contains the segment with the given media sequence number or has ended
+     * (LL-HLS blocking playlist reload). Fails with IllegalArgumentException if the segment is more than two
+     * segments ahead of the playlist, and with TimeoutException if it does not appear in time.
+     */
+    public CompletableFuture<HlsPlaylist> awaitMediaSequence(String uuid, long mediaSequence) {
+        return awaitMediaSequence(uuid, mediaSequence, Duration.ofMillis(blockingReloadTimeoutMs));
+    }
+
+    public CompletableFuture<HlsPlaylist> awaitMediaSequence(String uuid, long mediaSequence, Duration timeout) {
+        CompletableFuture<HlsPlaylist> future = new CompletableFuture<>();
+        Runnable unsubscribe = fileWatchService.subscribe(getPlaylistPath(uuid), path -> {
+            HlsPlaylist playlist;
+            try {
+                playlist = HlsPlaylist.read(path);
+            } catch (IOException | RuntimeException e) {
+                // playlist is being rewritten, the next change event will pick it up
+                return;
+            }
+
+            if (playlist.lastMediaSequence() >= mediaSequence || playlist.ended()) {
+                future.complete(playlist);
+            } else if (!future.isDone() && mediaSequence > playlist.lastMediaSequence() + 2) {
+                future.completeExceptionally(new IllegalArgumentException("Requested media sequence is too far ahead"));
+            }
+        });
+        future.whenComplete((playlist, error) -> unsubscribe.run());
+        return future.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Completes once the playlist has ended, i.e. wav2lip has rendered the last chunk of the stream.
+     */
+    public CompletableFuture<HlsPlaylist> awaitEnd(String uuid, Duration timeout) {
+        CompletableFuture<HlsPlaylist> future = new CompletableFuture<>();
+        Runnable unsubscribe = fileWatchService.subscribe(getPlaylistPath(uuid), path -> {
+            try {
+                HlsPlaylist playlist = HlsPlaylist.read(path);
+                if (playlist.ended()) {
+                    future.complete(playlist);
+                }
+            } catch (IOException | RuntimeException e) {
+                // playlist is being rewritten, the next change event will pick it up
+            }
+        });
+        future.whenComplete((playlist, error) -> unsubscribe.run());
+        return future.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+}
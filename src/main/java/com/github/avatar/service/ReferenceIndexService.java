@@ -0,0 +1,98 @@
+package com.github.avatar.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+
+/**
+ * Reads and rewrites the fingerprints that PDFService stores in the metadata of the pgvector rows,
+ * so unchanged chunks of an uploaded file are neither embedded nor inserted again.
+ */
+@Service
+public class ReferenceIndexService {
+    public static final String CONTENT_HASH = "content_hash";
+    public static final String FILE_HASH = "file_hash";
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Value("${spring.ai.vectorstore.pgvector.schema-name:public}")
+    private String schemaName;
+
+    @Value("${spring.ai.vectorstore.pgvector.table-name:vector_store}")
+    private String tableName;
+
+    public ReferenceIndexService(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public record IndexedChunk(String id, String contentHash, String pageNumber, String fileHash) {}
+
+    public List<IndexedChunk> findChunks(String room, String fileName) {
+        return jdbcTemplate.query("SELECT id, metadata->>'" + CONTENT_HASH + "', metadata->>'page_number', metadata->>'" + FILE_HASH + "' FROM " + table()
+                        + " WHERE room = ? AND metadata->>'file_name' = ?",
+                (rs, rowNum) -> new IndexedChunk(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4)),
+                room, fileName);
+    }
+
+    /**
+     * Returns one row id per content hash that is already embedded somewhere in the room.
+     */
+    public Map<String, String> findEmbeddedHashes(String room) {
+        Map<String, String> hashes = new HashMap<>();
+        jdbcTemplate.query("SELECT DISTINCT ON (metadata->>'" + CONTENT_HASH + "') metadata->>'" + CONTENT_HASH + "', id FROM " + table()
+                        + " WHERE room = ? AND metadata->>'" + CONTENT_HASH + "' IS NOT NULL",
+                rs -> {
+                    hashes.put(rs.getString(1), rs.getString(2));
+                },
+                room);
+        return hashes;
+    }
+
+    /**
+     * Inserts new rows that reuse the embedding of an existing row with the same content. Each entry maps the
+     * id of the new row to its metadata and the id of the row to copy from.
+     */
+    public void copyEmbeddings(List<EmbeddingCopy> copies) {
+        if (copies.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO " + table() + " (id, content, metadata, embedding) SELECT ?::uuid, content, ?::json, embedding FROM " + table()
+                        + " WHERE id = ?::uuid ON CONFLICT (id) DO NOTHING",
+                copies, copies.size(), (ps, copy) -> {
+                    ps.setString(1, copy.id());
+                    ps.setString(2, toJson(copy.metadata()));
+                    ps.setString(3, copy.sourceId());
+                });
+    }
+
+    public record EmbeddingCopy(String id, Map<String, Object> metadata, String sourceId) {}
+
+    public void updateFileHash(Collection<String> ids, String fileHash) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate("UPDATE " + table() + " SET metadata = jsonb_set(metadata::jsonb, '{" + FILE_HASH + "}', to_jsonb(?::text))::json WHERE id = ?::uuid",
+                ids, ids.size(), (ps, id) -> {
+                    ps.setString(1, fileHash);
+                    ps.setString(2, id);
+                });
+    }
+
+    private String table() {
+        return schemaName + "." + tableName;
+    }
+
+    private static String toJson(Map<String, Object> metadata) {
+        try {
+            return objectMapper.writeValueAsString(metadata);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.github.avatar.service;
+
+import com.github.avatar.dto.HlsPlaylist;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Remembers finished renders by hash of speaker, language and normalized text, so an answer that was already spoken
+ * by the same avatar is served from its existing stream without any xtts or wav2lip work. The rendered directories
+ * are bounded by total size; the least recently used render is deleted first.
+ */
+@Service
+public class RenderCacheService {
+    @Value("${output_path}")
+    private String outputPath;
+
+    @Value("${render-cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${render-cache.max-bytes:1073741824}")
+    private long maxBytes;
+
+    private final PlaylistService playlistService;
+    private final OutputRetentionService outputRetentionService;
+    private final LinkedHashMap<String, CachedRender> renders = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    private record CachedRender(String ownerId, String uuid, long sizeBytes) {}
+
+    public RenderCacheService(PlaylistService playlistService, OutputRetentionService outputRetentionService) {
+        this.playlistService = playlistService;
+        this.outputRetentionService = outputRetentionService;
+    }
+
+    public String key(String ownerId, String language, String text) {
+        String normalized = text.strip().replaceAll("\\s+", " ");
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest((ownerId + "\0" + language + "\0" + normalized).getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the streaming uuid of a finished render of the key, if its playlist is still complete on disk.
+     */
+    public Optional<String> find(String key) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+
+        CachedRender render;
+        synchronized (this) {
+            render = renders.get(key);
+        }
+        if (render == null) {
+            return Optional.empty();
+        }
+        // The retention service may have deleted the directory in the meantime
+        if (!isComplete(render.uuid())) {
+            remove(key, render);
+            return Optional.empty();
+        }
+        outputRetentionService.touch(render.uuid());
+        return Optional.of(render.uuid());
+    }
+
+    /**
+     * Adds a render once its playlist has ended and evicts the least recently used renders beyond the size limit.
+     */
+    public void store(String key, String ownerId, String uuid) {
+        if (!enabled) {
+            return;
+        }
+
+        CachedRender render = new CachedRender(ownerId, uuid, directorySize(Paths.get(outputPath, uuid)));
+        List<CachedRender> evicted = new ArrayList<>();
+        synchronized (this) {
+            CachedRender previous = renders.put(key, render);
+            if (previous != null) {
+                totalBytes -= previous.sizeBytes();
+                if (!previous.uuid().equals(uuid)) {
+                    evicted.add(previous);
+                }
+            }
+            totalBytes += render.sizeBytes();
+
+            Iterator<CachedRender> eldest = renders.values().iterator();
+            while (totalBytes > maxBytes && eldest.hasNext()) {
+                CachedRender candidate = eldest.next();
+                if (candidate == render) {
+                    continue;
+                }
+                eldest.remove();
+                totalBytes -= candidate.sizeBytes();
+                evicted.add(candidate);
+            }
+        }
+        evicted.forEach(this::delete);
+    }
+
+    /**
+     * Forgets all renders of an avatar, e.g. after its voice or face was replaced.
+     */
+    public void invalidate(String ownerId) {
+        List<CachedRender> removed = new ArrayList<>();
+        synchronized (this) {
+            renders.values().removeIf(render -> {
+                if (render.ownerId().equals(ownerId)) {
+                    totalBytes -= render.sizeBytes();
+                    removed.add(render);
+                    return true;
+                }
+                return false;
+            });
+        }
+        removed.forEach(this::delete);
+    }
+
+    private synchronized void remove(String key, CachedRender render) {
+        if (renders.remove(key, render)) {
+            totalBytes -= render.sizeBytes();
+        }
+    }
+
+    private boolean isComplete(String uuid) {
+        try {
+            HlsPlaylist playlist = playlistService.getPlaylist(uuid);
+            return playlist != null && playlist.ended();
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    // A render that is still being watched is left to the retention service
+    private void delete(CachedRender render) {
+        outputRetentionService.delete(render.uuid());
+    }
+
+    private static long directorySize(Path directory) {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.github.avatar.service;
+
+import com.github.avatar.dto.LLMResponseDTO;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-room cache of generated answers, keyed by the embedding of the question. A new question whose
+ * embedding is close enough to a cached one gets the cached answer without calling the LLM.
+ */
+@Service
+public class ResponseCacheService {
+    @Value("${response-cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${response-cache.similarity-threshold:0.95}")
+    private double similarityThreshold;
+
+    @Value("${response-cache.max-entries-per-room:200}")
+    private int maxEntriesPerRoom;
+
+    @Value("${response-cache.ttl-seconds:3600}")
+    private long ttlSeconds;
+
+    private final Map<String, Deque<CachedAnswer>> rooms = new ConcurrentHashMap<>();
+
+    private record CachedAnswer(float[] embedding, LLMResponseDTO response, long createdAt) {}
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Optional<LLMResponseDTO> findResponse(String room, float[] embedding) {
+        return findAnswer(room, embedding).map(CachedAnswer::response);
+    }
+
+    public void storeResponse(String room, float[] embedding, LLMResponseDTO response) {
+        if (!enabled) {
+            return;
+        }
+
+        Deque<CachedAnswer> answers = rooms.computeIfAbsent(room, k -> new ArrayDeque<>());
+        synchronized (answers) {
+            answers.addFirst(new CachedAnswer(embedding, response, System.currentTimeMillis()));
+            while (answers.size() > maxEntriesPerRoom) {
+                answers.removeLast();
+            }
+        }
+    }
+
+    public void invalidate(String room) {
+        rooms.remove(room);
+    }
+
+    @Scheduled(fixedDelayString = "${response-cache.sweep-ms:60000}")
+    public void evictExpired() {
+        long now = System.currentTimeMillis();
+        rooms.forEach((room, answers) -> {
+            synchronized (answers) {
+                answers.removeIf(answer -> isExpired(answer, now));
+            }
+        });
+        rooms.values().removeIf(Deque::isEmpty);
+    }
+
+    private Optional<CachedAnswer> findAnswer(String room, float[] embedding) {
+        Deque<CachedAnswer> answers = rooms.get(room);
+        if (!enabled || answers == null) {
+            return Optional.empty();
+        }
+
+        long now = System.currentTimeMillis();
+        CachedAnswer best = null;
+        double bestSimilarity = similarityThreshold;
+        synchronized (answers) {
+            for (CachedAnswer answer : answers) {
+                double similarity = cosineSimilarity(embedding, answer.embedding());
+                if (!isExpired(answer, now) && similarity >= bestSimilarity) {
+                    best = answer;
+                    bestSimilarity = similarity;
+                }
+            }
+        }
+        return Optional.ofNullable(best);
+    }
+
+    private boolean isExpired(CachedAnswer answer, long now) {
+        return now - answer.createdAt() > ttlSeconds * 1000;
+    }
+
+    private static double cosineSimilarity(float[] a, float[] b) {
+        if (a.length != b.length) {
+            return 0;
+        }
+
+        double dot = 0;
+        double normA = 0;
+        double normB = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return normA == 0 || normB == 0 ? 0 : dot / (Math.sqrt(normA) * Math.sqrt(normB));
+    }
+}
@@ -1,5 +1,6 @@
 package com.github.avatar.service;
 
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ByteArrayResource;
 import org.springframework.stereotype.Service;
@@ -16,8 +17,8 @@ public class STTService {
 
     private final RestClient restClient;
 
-    public STTService() {
-        this.restClient = RestClient.create();
+    public STTService(@Qualifier("sttRestClient") RestClient restClient) {
+        this.restClient = restClient;
     }
 
 
@@ -0,0 +1,179 @@
+package com.github.avatar.service;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves HLS files with conditional and range request support. Finished segments are kept as memory-mapped
+ * buffers in a size-bounded LRU cache, so a whole room watching the same answer reads each segment from disk once.
+ * Files that are not cached are handed to Tomcat's sendfile, or copied with {@link FileChannel#transferTo}.
+ */
+@Service
+public class SegmentService {
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    @Value("${segment-cache.max-bytes:268435456}")
+    private long maxCacheBytes;
+
+    @Value("${segment-cache.ttl-seconds:600}")
+    private long cacheTtlSeconds;
+
+    private final Map<Path, CachedSegment> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private long cachedBytes;
+
+    private record CachedSegment(MappedByteBuffer buffer, long lastModified, String etag, long cachedAt) {}
+
+    /**
+     * Writes the file to the response. Returns false if the file does not exist, without touching the response.
+     * Only immutable files should be marked cacheable, the cache is keyed by path and never revalidated.
+     */
+    public boolean serve(Path file, String contentType, boolean cacheable, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        CachedSegment segment = cacheable ? getCached(file) : null;
+        if (segment == null) {
+            if (!Files.exists(file)) {
+                return false;
+            }
+            // The first viewer gets the zero-copy path, everyone after that is served from the mapping
+            if (cacheable) {
+                load(file);
+            }
+        }
+
+        long lastModified = segment != null ? segment.lastModified() : Files.getLastModifiedTime(file).toMillis();
+        long length = segment != null ? segment.buffer().capacity() : Files.size(file);
+        String etag = segment != null ? segment.etag() : etag(length, lastModified);
+
+        response.setContentType(contentType);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (new ServletWebRequest(request, response).checkNotModified(etag, lastModified)) {
+            return true;
+        }
+
+        long start = 0;
+        long end = length - 1;
+        List<HttpRange> ranges = parseRanges(request.getHeader(HttpHeaders.RANGE));
+        if (ranges.size() == 1 && length > 0) {
+            HttpRange range = ranges.get(0);
+            if (range.getRangeStart(length) >= length) {
+                response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                return true;
+            }
+            start = range.getRangeStart(length);
+            end = range.getRangeEnd(length);
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+        }
+        response.setContentLengthLong(end - start + 1);
+
+        if ("HEAD".equals(request.getMethod()) || length == 0) {
+            return true;
+        }
+
+        if (segment != null) {
+            ByteBuffer body = segment.buffer().duplicate().position((int) start).limit((int) end + 1);
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            while (body.hasRemaining()) {
+                out.write(body);
+            }
+        } else if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end + 1);
+        } else {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+                long position = start;
+                while (position <= end) {
+                    position += channel.transferTo(position, end + 1 - position, out);
+                }
+            }
+        }
+        return true;
+    }
+
+    @Scheduled(fixedDelayString = "${segment-cache.sweep-ms:60000}")
+    public synchronized void evictExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<CachedSegment> iterator = cache.values().iterator();
+        while (iterator.hasNext()) {
+            CachedSegment segment = iterator.next();
+            if (now - segment.cachedAt() > cacheTtlSeconds * 1000) {
+                cachedBytes -= segment.buffer().capacity();
+                iterator.remove();
+            }
+        }
+    }
+
+    private synchronized CachedSegment getCached(Path file) {
+        CachedSegment segment = cache.get(file);
+        if (segment != null && System.currentTimeMillis() - segment.cachedAt() > cacheTtlSeconds * 1000) {
+            cache.remove(file);
+            cachedBytes -= segment.buffer().capacity();
+            return null;
+        }
+        return segment;
+    }
+
+    private void load(Path file) throws IOException {
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Math.min(maxCacheBytes, Integer.MAX_VALUE)) {
+                return;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        CachedSegment segment = new CachedSegment(buffer, lastModified, etag(buffer.capacity(), lastModified), System.currentTimeMillis());
+        synchronized (this) {
+            CachedSegment previous = cache.put(file, segment);
+            if (previous != null) {
+                cachedBytes -= previous.buffer().capacity();
+            }
+            cachedBytes += buffer.capacity();
+
+            Iterator<CachedSegment> eldest = cache.values().iterator();
+            while (cachedBytes > maxCacheBytes && eldest.hasNext()) {
+                cachedBytes -= eldest.next().buffer().capacity();
+                eldest.remove();
+            }
+        }
+    }
+
+    private static String etag(long length, long lastModified) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    private static List<HttpRange> parseRanges(String header) {
+        try {
+            return HttpRange.parseRanges(header);
+        } catch (IllegalArgumentException e) {
+            return List.of();
+        }
+    }
+}
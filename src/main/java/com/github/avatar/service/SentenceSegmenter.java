@@ -0,0 +1,122 @@
+package com.github.avatar.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns a stream of LLM tokens into speakable sentence batches. {@code <think>} blocks are dropped even when the
+ * tags are split across tokens, and sentences shorter than the minimum length are merged with the following ones.
+ * Not thread-safe, tokens of one stream arrive in order.
+ */
+public class SentenceSegmenter {
+    private static final String THINK_START = "<think>";
+    private static final String THINK_END = "</think>";
+
+    private final int minBatchLength;
+    private final StringBuilder pending = new StringBuilder();
+    private final StringBuilder batch = new StringBuilder();
+    private final StringBuilder visibleText = new StringBuilder();
+    private boolean inThink;
+
+    public SentenceSegmenter(int minBatchLength) {
+        this.minBatchLength = minBatchLength;
+    }
+
+    /**
+     * Consumes the next token and returns the sentence batches it completed.
+     */
+    public List<String> accept(String token) {
+        pending.append(token);
+        appendVisible(drainVisible());
+        return drainSentences();
+    }
+
+    /**
+     * Returns whatever is left once the stream has ended, or an empty string.
+     */
+    public String flush() {
+        if (!inThink) {
+            appendVisible(pending.toString());
+        }
+        pending.setLength(0);
+
+        String rest = batch.toString().strip();
+        batch.setLength(0);
+        return rest;
+    }
+
+    /**
+     * The complete text without think blocks that was seen so far.
+     */
+    public String getVisibleText() {
+        return visibleText.toString();
+    }
+
+    public int getVisibleLength() {
+        return visibleText.length();
+    }
+
+    /**
+     * The visible text from the given offset on, used to hand out only what a token added.
+     */
+    public String getVisibleText(int fromIndex) {
+        return visibleText.substring(fromIndex);
+    }
+
+    private String drainVisible() {
+        StringBuilder visible = new StringBuilder();
+        while (true) {
+            if (inThink) {
+                int end = pending.indexOf(THINK_END);
+                if (end < 0) {
+                    // Keep a possible partial closing tag, drop the rest of the thought
+                    pending.delete(0, Math.max(0, pending.length() - THINK_END.length() + 1));
+                    return visible.toString();
+                }
+                pending.delete(0, end + THINK_END.length());
+                inThink = false;
+            } else {
+                int start = pending.indexOf(THINK_START);
+                if (start >= 0) {
+                    visible.append(pending, 0, start);
+                    pending.delete(0, start + THINK_START.length());
+                    inThink = true;
+                    continue;
+                }
+
+                int keep = partialTagLength();
+                visible.append(pending, 0, pending.length() - keep);
+                pending.delete(0, pending.length() - keep);
+                return visible.toString();
+            }
+        }
+    }
+
+    private int partialTagLength() {
+        for (int length = Math.min(THINK_START.length() - 1, pending.length()); length > 0; length--) {
+            if (THINK_START.startsWith(pending.substring(pending.length() - length))) {
+                return length;
+            }
+        }
+        return 0;
+    }
+
+    private void appendVisible(String text) {
+        visibleText.append(text);
+        batch.append(text);
+    }
+
+    private List<String> drainSentences() {
+        List<String> sentences = new ArrayList<>();
+        for (int i = 0; i < batch.length() - 1; i++) {
+            char c = batch.charAt(i);
+            boolean boundary = (c == '.' || c == '!' || c == '?' || c == '\n') && Character.isWhitespace(batch.charAt(i + 1));
+            if (boundary && batch.substring(0, i + 1).strip().length() >= minBatchLength) {
+                sentences.add(batch.substring(0, i + 1).strip());
+                batch.delete(0, i + 1);
+                i = -1;
+            }
+        }
+        return sentences;
+    }
+}
@@ -0,0 +1,58 @@
+package com.github.avatar.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+
+/**
+ * Records the stage timings of a pipeline run as avatar.pipeline.stage timers tagged with stage, upstream, outcome and room,
+ * and passes all callbacks on to the listener of the caller.
+ */
+class StageMetricsListener implements PipelineListener {
+    static final String OTHER_ROOM = "other";
+
+    private final PipelineListener delegate;
+    private final String room;
+    private final MeterRegistry meterRegistry;
+
+    StageMetricsListener(PipelineListener delegate, String room, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.room = room;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public void onQueued(String upstream, int position) {
+        delegate.onQueued(upstream, position);
+    }
+
+    @Override
+    public void onTranscription(String text) {
+        delegate.onTranscription(text);
+    }
+
+    @Override
+    public void onToken(String text) {
+        delegate.onToken(text);
+    }
+
+    @Override
+    public void onStreamingUuid(String streamingUuid) {
+        delegate.onStreamingUuid(streamingUuid);
+    }
+
+    @Override
+    public void onStage(String stage, String upstream, Duration duration, boolean success) {
+        Timer.builder("avatar.pipeline.stage")
+                .description("Duration of one stage of the avatar pipeline")
+                .tag("stage", stage)
+                .tag("upstream", upstream)
+                .tag("outcome", success ? "success" : "error")
+                .tag("room", room)
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(duration);
+        delegate.onStage(stage, upstream, duration, success);
+    }
+}
@@ -1,22 +1,26 @@
 package com.github.avatar.service;
 
 import com.github.avatar.Main;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.ParameterizedTypeReference;
-import org.springframework.http.*;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.web.client.RestClient;
 
-import java.io.File;
 import java.io.IOException;
-import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
 
 @Service
 public class TTSService {
@@ -29,47 +33,104 @@ public class TTSService {
     @Value("${output_path}")
     private String outputPath;
 
-    public String processText(String text, String id, String language) throws InterruptedException {
+    @Value("${tts.first-chunk-timeout-ms:15000}")
+    private long firstChunkTimeoutMs;
+
+    @Value("${tts.first-segment-timeout-ms:60000}")
+    private long firstSegmentTimeoutMs;
+
+    private final RestClient ttsRestClient;
+    private final RestClient videoRestClient;
+    private final FileWatchService fileWatchService;
+    private final PlaylistService playlistService;
+    private final Executor executor;
+
+    public TTSService(@Qualifier("ttsRestClient") RestClient ttsRestClient, @Qualifier("videoRestClient") RestClient videoRestClient, FileWatchService fileWatchService, PlaylistService playlistService, @Qualifier("applicationTaskExecutor") Executor executor) {
+        this.ttsRestClient = ttsRestClient;
+        this.videoRestClient = videoRestClient;
+        this.fileWatchService = fileWatchService;
+        this.playlistService = playlistService;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts speech synthesis and completes with the streaming uuid once wav2lip has been triggered
+     * on the first audio chunk, or with null if either service fails.
+     */
+    public CompletableFuture<String> processText(String text, String id, String language, PipelineListener listener) {
+        String uuid = PipelineListener.timed(listener, "tts-request", "xtts", () -> requestSpeech(text, id, language, null, true));
+        if (uuid == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return awaitLipSync(uuid, id, listener);
+    }
+
+    /**
+     * Sends text to xtts. Without a uuid a new session is started, otherwise the text is appended to that session.
+     * The last batch of a session has to be sent with finalBatch set, so the stream gets an end.
+     * Returns the session uuid, or null if xtts rejected the request.
+     */
+    public String requestSpeech(String text, String id, String language, String uuid, boolean finalBatch) {
         Map<String, Object> ttsRequest = new HashMap<>();
         ttsRequest.put("speaker_name", id);
         ttsRequest.put("language", language);
         ttsRequest.put("text", text);
+        ttsRequest.put("final", finalBatch);
+        if (uuid != null) {
+            ttsRequest.put("uuid", uuid);
+        }
 
-        RestTemplate client = new RestTemplate();
-        ResponseEntity<Map<String, String>> ttsResponse = client.exchange(
-                URI.create(ttsServerUrl),
-                HttpMethod.POST,
-                new HttpEntity<>(ttsRequest),
-                new ParameterizedTypeReference<>() {}
-        );
+        ResponseEntity<Map<String, String>> ttsResponse = ttsRestClient.post()
+                .uri(ttsServerUrl)
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(ttsRequest)
+                .retrieve()
+                .toEntity(new ParameterizedTypeReference<>() {});
 
         if (!ttsResponse.getStatusCode().is2xxSuccessful() || !ttsResponse.hasBody() || !ttsResponse.getBody().containsKey("uuid")) {
             Main.LOGGER.error("Tts response code unsuccessful: {}", ttsResponse.getStatusCode());
             return null;
         }
 
-        String uuid = ttsResponse.getBody().get("uuid");
-
-        String chunkPath = outputPath + uuid + "/0001p.wav";
-
-        File chunkFile = new File(Paths.get(chunkPath).normalize().toFile().getAbsolutePath());
-        long start = System.currentTimeMillis();
-        while (!chunkFile.exists()) {
-            Thread.sleep(500);
-            if (System.currentTimeMillis() - start > 15000) {
-                Main.LOGGER.error("Timeout waiting for the first audio chunk.");
-                return null;
-            }
-        }
+        return ttsResponse.getBody().get("uuid");
+    }
 
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+    /**
+     * Completes with the uuid once wav2lip has been started on the first audio chunk of the session, or with null.
+     * Reports the wait for the first chunk, the wav2lip request and the wait for the first HLS segment to the listener.
+     */
+    public CompletableFuture<String> awaitLipSync(String uuid, String id, PipelineListener listener) {
+        Path chunkPath = Paths.get(outputPath, uuid, "0001p.wav");
+
+        return PipelineListener.timedAsync(listener, "first-audio-chunk", "xtts", () -> fileWatchService.awaitFile(chunkPath, Duration.ofMillis(firstChunkTimeoutMs)))
+                .thenApplyAsync(chunk -> PipelineListener.timed(listener, "lipsync-request", "wav2lip", () -> startLipSync(id, uuid)), executor)
+                .thenApply(started -> {
+                    if (started != null) {
+                        PipelineListener.timedAsync(listener, "first-segment", "wav2lip", () -> playlistService.awaitMediaSequence(uuid, 0, Duration.ofMillis(firstSegmentTimeoutMs)));
+                    }
+                    return started;
+                })
+                .exceptionally(e -> {
+                    if (e.getCause() instanceof TimeoutException) {
+                        Main.LOGGER.error("Timeout waiting for the first audio chunk.");
+                    } else {
+                        Main.LOGGER.error("Could not start lip sync: ", e);
+                    }
+                    return null;
+                });
+    }
 
+    private String startLipSync(String id, String uuid) {
         MultiValueMap<String, String> formData = new LinkedMultiValueMap<>();
         formData.add("professor", id);
         formData.add("uuid", uuid);
 
-        ResponseEntity<String> wav2lipResponse = client.postForEntity(URI.create(videoServerUrl), new HttpEntity<>(formData, headers), String.class);
+        ResponseEntity<String> wav2lipResponse = videoRestClient.post()
+                .uri(videoServerUrl)
+                .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+                .body(formData)
+                .retrieve()
+                .toEntity(String.class);
 
         if (!wav2lipResponse.getStatusCode().is2xxSuccessful()) {
             Main.LOGGER.error("Wav2Lip failed.");
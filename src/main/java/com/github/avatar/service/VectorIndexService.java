@@ -0,0 +1,190 @@
+package com.github.avatar.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.avatar.Main;
+import com.pgvector.PGvector;
+import jakarta.annotation.PostConstruct;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Manages the indexes of the pgvector table and runs the room-scoped similarity search. The room is kept in
+ * a generated, indexed column, so the search is restricted to one room by a plain column filter instead of a
+ * JSON path match on every row. The HNSW index is created with the configured m and ef_construction, ef_search
+ * and iterative scans are set per connection in spring.datasource.hikari.connection-init-sql. A generated tsvector
+ * column with a GIN index backs the lexical half of the hybrid search.
+ */
+@Service
+public class VectorIndexService {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final String HNSW_INDEX_PREFIX = "vector_store_embedding_hnsw";
+    private static final int RRF_K = 60;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final EmbeddingModel embeddingModel;
+
+    @Value("${spring.ai.vectorstore.pgvector.schema-name:public}")
+    private String schemaName;
+
+    @Value("${spring.ai.vectorstore.pgvector.table-name:vector_store}")
+    private String tableName;
+
+    @Value("${vector-index.hnsw.m:16}")
+    private int hnswM;
+
+    @Value("${vector-index.hnsw.ef-construction:64}")
+    private int hnswEfConstruction;
+
+    @Value("${vector-index.text-search-config:german}")
+    private String textSearchConfig;
+
+    @Value("${vector-index.hybrid.candidates:20}")
+    private int hybridCandidates;
+
+    // Chunks found only by the full-text search need at least this ts_rank_cd to be used
+    @Value("${vector-index.hybrid.min-text-rank:0.2}")
+    private double minTextRank;
+
+    // The vector store is only injected so that its table exists before the indexes are created
+    public VectorIndexService(JdbcTemplate jdbcTemplate, EmbeddingModel embeddingModel, VectorStore vectorStore) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.embeddingModel = embeddingModel;
+    }
+
+    /**
+     * Fails the startup if the room column or one of the indexes cannot be created, the searches depend on them. It runs
+     * while the beans are created, so the web server never accepts requests without them.
+     */
+    @PostConstruct
+    public void createIndexes() {
+        String hnswIndex = HNSW_INDEX_PREFIX + "_m" + hnswM + "_ef" + hnswEfConstruction;
+        try {
+            // The config name ends up in the column definition, so only an existing configuration is accepted
+            Integer configs = jdbcTemplate.queryForObject("SELECT count(*) FROM pg_ts_config WHERE cfgname = ?", Integer.class, textSearchConfig);
+            if (configs == null || configs == 0) {
+                throw new IllegalArgumentException("Unknown text search configuration: " + textSearchConfig);
+            }
+
+            jdbcTemplate.execute("ALTER TABLE " + table() + " ADD COLUMN IF NOT EXISTS room text GENERATED ALWAYS AS (metadata->>'room') STORED");
+            jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS " + tableName + "_room_file_idx ON " + table() + " (room, (metadata->>'file_name'))");
+            dropOutdatedTextSearchColumn();
+            jdbcTemplate.execute("ALTER TABLE " + table() + " ADD COLUMN IF NOT EXISTS content_tsv tsvector GENERATED ALWAYS AS (to_tsvector('" + textSearchConfig + "'::regconfig, coalesce(content, ''))) STORED");
+            jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS " + tableName + "_content_tsv_idx ON " + table() + " USING gin (content_tsv)");
+
+            // The parameters are part of the name, so changing them builds a new index and drops the old ones
+            jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS " + hnswIndex + " ON " + table() + " USING hnsw (embedding vector_cosine_ops) WITH (m = " + hnswM + ", ef_construction = " + hnswEfConstruction + ")");
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not create the vector store columns and indexes", e);
+        }
+
+        try {
+            List<String> outdatedIndexes = jdbcTemplate.queryForList("SELECT indexname FROM pg_indexes WHERE schemaname = ? AND tablename = ? AND (indexname = 'spring_ai_vector_index' OR indexname LIKE '" + HNSW_INDEX_PREFIX + "%') AND indexname <> ?",
+                    String.class, schemaName, tableName, hnswIndex);
+            outdatedIndexes.forEach(index -> jdbcTemplate.execute("DROP INDEX IF EXISTS " + schemaName + "." + index));
+        } catch (Exception e) {
+            // The outdated indexes only cost space and write time, the search uses the new one
+            Main.LOGGER.error("Could not drop the outdated vector indexes: ", e);
+        }
+    }
+
+    // A column generated with another configuration would not match the queries, it is dropped together with its index
+    private void dropOutdatedTextSearchColumn() {
+        List<String> expressions = jdbcTemplate.queryForList("SELECT pg_get_expr(d.adbin, d.adrelid) FROM pg_attrdef d JOIN pg_attribute a ON a.attrelid = d.adrelid AND a.attnum = d.adnum"
+                + " WHERE d.adrelid = ?::regclass AND a.attname = 'content_tsv'", String.class, table());
+        if (!expressions.isEmpty() && !expressions.get(0).contains("'" + textSearchConfig + "'::regconfig")) {
+            jdbcTemplate.execute("ALTER TABLE " + table() + " DROP COLUMN content_tsv");
+        }
+    }
+
+    /**
+     * Returns the topK chunks of the room that are closest to the query and at least as similar as the threshold.
+     * The query is only embedded if no embedding of it is passed.
+     */
+    public List<Document> similaritySearch(String query, float[] queryEmbedding, String room, int topK, double similarityThreshold) {
+        PGvector queryVector = queryVector(query, queryEmbedding);
+        return vectorSearch(queryVector, room, topK, similarityThreshold);
+    }
+
+    /**
+     * Fuses the vector search with a full-text search over the same chunks by reciprocal rank fusion, so chunks that
+     * contain the exact terms of the question are found even if their embedding is not close enough. Full-text matches
+     * need any term of the question and the minimum rank, so a chunk that shares a single common word with the question
+     * is not a candidate. The query is only embedded if no embedding of it is passed.
+     */
+    public List<Document> hybridSearch(String query, float[] queryEmbedding, String room, int topK, double similarityThreshold) {
+        PGvector queryVector = queryVector(query, queryEmbedding);
+        List<Document> vectorMatches = vectorSearch(queryVector, room, hybridCandidates, similarityThreshold);
+        List<Document> textMatches = textSearch(query, room, hybridCandidates);
+
+        Map<String, Document> documents = new HashMap<>();
+        Map<String, Double> scores = new HashMap<>();
+        for (List<Document> ranking : List.of(vectorMatches, textMatches)) {
+            for (int rank = 0; rank < ranking.size(); rank++) {
+                Document document = ranking.get(rank);
+                documents.putIfAbsent(document.getId(), document);
+                scores.merge(document.getId(), 1.0 / (RRF_K + rank + 1), Double::sum);
+            }
+        }
+
+        return scores.entrySet().stream()
+                .sorted(Map.Entry.<String, Double>comparingByValue().reversed())
+                .limit(topK)
+                .map(entry -> documents.get(entry.getKey()).mutate().score(entry.getValue()).build())
+                .toList();
+    }
+
+    // Any term may match, the rank floor drops chunks that contain few of them, stop words of the language are ignored
+    private List<Document> textSearch(String query, String room, int limit) {
+        return jdbcTemplate.query("SELECT id, content, metadata::text, rank FROM (SELECT id, content, metadata, ts_rank_cd(content_tsv, query) AS rank FROM " + table()
+                        + ", CAST(replace(plainto_tsquery(?::regconfig, ?)::text, '&', '|') AS tsquery) AS query"
+                        + " WHERE room = ? AND content_tsv @@ query) AS matches WHERE rank >= ? ORDER BY rank DESC LIMIT ?",
+                (rs, rowNum) -> Document.builder()
+                        .id(rs.getString(1))
+                        .text(rs.getString(2))
+                        .metadata(parseMetadata(rs.getString(3)))
+                        .score(rs.getDouble(4))
+                        .build(),
+                textSearchConfig, query, room, minTextRank, limit);
+    }
+
+    private List<Document> vectorSearch(PGvector queryVector, String room, int topK, double similarityThreshold) {
+        return jdbcTemplate.query("SELECT id, content, metadata::text, embedding <=> ? AS distance FROM " + table()
+                                + " WHERE room = ? ORDER BY embedding <=> ? LIMIT ?",
+                        (rs, rowNum) -> Document.builder()
+                                .id(rs.getString(1))
+                                .text(rs.getString(2))
+                                .metadata(parseMetadata(rs.getString(3)))
+                                .score(1 - rs.getDouble(4))
+                                .build(),
+                        queryVector, room, queryVector, topK)
+                .stream()
+                .filter(document -> document.getScore() >= similarityThreshold)
+                .toList();
+    }
+
+    private PGvector queryVector(String query, float[] queryEmbedding) {
+        return new PGvector(queryEmbedding != null ? queryEmbedding : embeddingModel.embed(query));
+    }
+
+    private String table() {
+        return schemaName + "." + tableName;
+    }
+
+    private static Map<String, Object> parseMetadata(String json) {
+        try {
+            return objectMapper.readValue(json, new TypeReference<>() {});
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.github.avatar.service;
+
+import com.github.avatar.Main;
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+import jakarta.annotation.PostConstruct;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.*;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
+
+/**
+ * Chat memory stored in Postgres. A conversation sends a summary of its older turns followed by the messages that
+ * have not been summarised yet. Once the messages outside the newest window-tokens grow beyond the compaction
+ * threshold, they are folded into the summary in the background and deleted, until then they are still sent, so no
+ * turn is missing from both the prompt and the summary.
+ */
+@Service
+public class WindowedChatMemory implements ChatMemory {
+    private record StoredMessage(long seq, String type, String content, int tokens) {}
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final ChatModel chatModel;
+    private final Executor executor;
+    private final Encoding encoding = Encodings.newLazyEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+    private final Set<String> compacting = ConcurrentHashMap.newKeySet();
+
+    @Value("${chat-memory.window-tokens:2000}")
+    private int windowTokens;
+
+    @Value("${chat-memory.compaction-threshold-tokens:2000}")
+    private int compactionThresholdTokens;
+
+    public WindowedChatMemory(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate, ChatModel chatModel, @Qualifier("applicationTaskExecutor") Executor executor) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.chatModel = chatModel;
+        this.executor = executor;
+    }
+
+    // Runs while the beans are created, so no request reaches the memory before its tables exist
+    @PostConstruct
+    public void createTables() {
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS chat_memory_message (seq bigserial PRIMARY KEY, conversation_id text NOT NULL, "
+                + "message_type text NOT NULL, content text NOT NULL, tokens int NOT NULL, created_at timestamptz NOT NULL DEFAULT now())");
+        jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS chat_memory_message_conversation_idx ON chat_memory_message (conversation_id, seq)");
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS chat_memory_summary (conversation_id text PRIMARY KEY, summary text NOT NULL, "
+                + "updated_at timestamptz NOT NULL DEFAULT now())");
+    }
+
+    @Override
+    public void add(String conversationId, List<Message> messages) {
+        List<Message> stored = messages.stream()
+                .filter(message -> message.getMessageType() == MessageType.USER || message.getMessageType() == MessageType.ASSISTANT)
+                .filter(message -> message.getText() != null && !message.getText().isBlank())
+                .toList();
+        jdbcTemplate.batchUpdate("INSERT INTO chat_memory_message (conversation_id, message_type, content, tokens) VALUES (?, ?, ?, ?)",
+                stored, stored.size(), (ps, message) -> {
+                    ps.setString(1, conversationId);
+                    ps.setString(2, message.getMessageType().name());
+                    ps.setString(3, message.getText());
+                    ps.setInt(4, encoding.countTokens(message.getText()));
+                });
+
+        List<StoredMessage> overflow = outsideWindow(loadMessages(conversationId));
+        if (overflow.stream().mapToInt(StoredMessage::tokens).sum() > compactionThresholdTokens && compacting.add(conversationId)) {
+            executor.execute(() -> {
+                try {
+                    compact(conversationId, overflow);
+                } catch (Exception e) {
+                    Main.LOGGER.error("Could not summarise chat memory: ", e);
+                } finally {
+                    compacting.remove(conversationId);
+                }
+            });
+        }
+    }
+
+    @Override
+    public List<Message> get(String conversationId) {
+        List<StoredMessage> messages = loadMessages(conversationId);
+        // Only if compaction has fallen behind or keeps failing do more messages pile up than window and threshold allow
+        List<StoredMessage> window = messages.subList(newestFitting(messages, windowTokens + compactionThresholdTokens), messages.size());
+
+        List<Message> result = new ArrayList<>();
+        findSummary(conversationId).ifPresent(summary -> result.add(new SystemMessage("Summary of the earlier conversation:\n" + summary)));
+        window.forEach(message -> result.add(MessageType.USER.name().equals(message.type())
+                ? new UserMessage(message.content())
+                : new AssistantMessage(message.content())));
+        return result;
+    }
+
+    @Override
+    public void clear(String conversationId) {
+        jdbcTemplate.update("DELETE FROM chat_memory_message WHERE conversation_id = ?", conversationId);
+        jdbcTemplate.update("DELETE FROM chat_memory_summary WHERE conversation_id = ?", conversationId);
+    }
+
+    private List<StoredMessage> loadMessages(String conversationId) {
+        return jdbcTemplate.query("SELECT seq, message_type, content, tokens FROM chat_memory_message WHERE conversation_id = ? ORDER BY seq",
+                (rs, rowNum) -> new StoredMessage(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getInt(4)),
+                conversationId);
+    }
+
+    // The oldest messages that do not fit into the window, they are the ones that get summarised
+    private List<StoredMessage> outsideWindow(List<StoredMessage> messages) {
+        return Collections.unmodifiableList(messages.subList(0, newestFitting(messages, windowTokens)));
+    }
+
+    // Index of the first of the newest messages that fit into the token budget, counted from the newest message backwards
+    private static int newestFitting(List<StoredMessage> messages, int budget) {
+        int tokens = 0;
+        int start = messages.size();
+        while (start > 0 && tokens + messages.get(start - 1).tokens() <= budget) {
+            tokens += messages.get(--start).tokens();
+        }
+        return start;
+    }
+
+    private Optional<String> findSummary(String conversationId) {
+        return jdbcTemplate.query("SELECT summary FROM chat_memory_summary WHERE conversation_id = ?",
+                (rs, rowNum) -> rs.getString(1), conversationId).stream().findFirst();
+    }
+
+    private void compact(String conversationId, List<StoredMessage> overflow) {
+        String transcript = overflow.stream()
+                .map(message -> (MessageType.USER.name().equals(message.type()) ? "Student: " : "Avatar: ") + message.content())
+                .collect(Collectors.joining("\n"));
+        String previousSummary = findSummary(conversationId).orElse("");
+
+        String summary = chatModel.call(new Prompt(List.of(
+                new SystemMessage("Summarise the conversation between a student and a lecture avatar in a few sentences. "
+                        + "Keep the topics, questions and facts that later questions could refer to. Answer only with the summary."),
+                new UserMessage((previousSummary.isEmpty() ? "" : "Earlier summary:\n" + previousSummary + "\n\n") + "Conversation:\n" + transcript))))
+                .getResult()
+                .getOutput()
+                .getText()
+                .replaceAll("(?s)<think>.*?</think>", "")
+                .trim();
+
+        // The summary and the deletion of the summarised messages are one step, so no turn is summarised twice
+        transactionTemplate.executeWithoutResult(status -> {
+            jdbcTemplate.update("INSERT INTO chat_memory_summary (conversation_id, summary) VALUES (?, ?) "
+                    + "ON CONFLICT (conversation_id) DO UPDATE SET summary = EXCLUDED.summary, updated_at = now()", conversationId, summary);
+            jdbcTemplate.update("DELETE FROM chat_memory_message WHERE conversation_id = ? AND seq <= ?", conversationId, overflow.get(overflow.size() - 1).seq());
+        });
+    }
+}